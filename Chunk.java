@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Part of a source tokenized by a task of the fork-join pool
+ */
+public class Chunk extends RecursiveTask<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    CharSequence source;
+    int start;
+    int end;
+    // tokens with the lines counted from the start of the chunk
+    List<Token> tokens;
+    // number of lines of the chunk
+    int lines;
+
+    public Chunk(CharSequence source, int start, int end) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    protected Void compute() {
+        tokens = new ArrayList<>();
+        int line = 1;
+        int wordStart = -1;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            boolean newLine = isLineSeparator(c);
+            if (newLine || Character.isWhitespace(c)) {
+                if (wordStart >= 0) {
+                    tokens.add(Lexer.classify(
+                            source.subSequence(wordStart, i).toString(), line));
+                    wordStart = -1;
+                }
+                if (newLine) {
+                    if (c == '\r' && i + 1 < end && source.charAt(i + 1) == '\n') {
+                        i++;
+                    }
+                    line++;
+                    lines++;
+                }
+            } else if (wordStart < 0) {
+                wordStart = i;
+            }
+        }
+        if (wordStart >= 0) {
+            tokens.add(Lexer.classify(
+                    source.subSequence(wordStart, end).toString(), line));
+        }
+        // a last line without a separator
+        if (end > start && !isLineSeparator(source.charAt(end - 1))) {
+            lines++;
+        }
+        return null;
+    }
+
+    static boolean isLineSeparator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029'
+                || c == '\u0085';
+    }
+}
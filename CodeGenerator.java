@@ -1,13 +1,48 @@
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
 
 public class CodeGenerator {
-    PrintWriter writer;
-    String code;
+    // code generated so far (in streaming mode, of the current function)
+    StringBuilder code;
     int labelCount;
+    // labels of the conditions have their own numbers, so that the labels
+    // of the statements do not depend on the conditions
+    int conditionLabelCount;
+    String fileName;
+    String className;
+    Options options;
+    // reports of the optimisations and the analysis
+    List<String> messages;
+    // source line of the functions, and of the start labels of the loops
+    // (by function and label)
+    Map<String, Integer> sourceLines;
+    // name of the current function
+    String functionName;
+    // map file of the counters of the instrumentation (null: none)
+    String counterMap;
+    // source of a module, its hash is written in the object file
+    CharSequence source;
+    // position in the code of the current function, after the header
+    int functionStart;
+    boolean tailCallLabel;
+    // output of the streaming mode (null: the code is written at the end)
+    Writer stream;
+    // functions and characters written to the stream
+    int streamFunctions;
+    long streamChars;
+    // local slots removed in the functions written to the stream
+    int streamSlots;
+    CompactCode streamCompact;
     
     public static final int NULL = 0;
     public static final int PUSH = 1;
@@ -29,19 +64,43 @@ public class CodeGenerator {
     
     public static final int RETURN = 14;
     
+    // Function of the runtime used for the multiplication
+    public static final String MULT_FUNCTION = "Main.mult";
+    // Label at the start of a function, target of the tail calls
+    public static final String TAIL_CALL_LABEL = "TAIL_CALL_START";
+    public static final String MULT_CODE = "function " + MULT_FUNCTION + " 2\npush constant 0\npop local 0\npush constant 0\npop local 1\nlabel label0\npush local 0\npush argument 1\nlt\nnot\nif-goto label1\npush local 0\npush constant 1\nadd\npop local 0\npush local 1\npush argument 0\nadd\npop local 1\ngoto label0\nlabel label1\npush local 1\nreturn";
+    
     Map<Integer, String> table;
     
     
     public CodeGenerator(String fileName) {
-        try {
-            writer = new PrintWriter(new FileWriter(fileName + ".vm"));
-            code = "";
-            table = new HashMap<>();
-            initTable();
-            labelCount = 0;
-        } catch (IOException e) {
-            System.out.println("Cannot write to file: " + fileName);
-        }
+        this(fileName, new Options());
+    }
+    
+    public CodeGenerator(String fileName, Options options) {
+        table = new HashMap<>();
+        initTable();
+        reset(fileName, options);
+    }
+    
+    /**
+     * Prepares the generator for a new program, so that the same object
+     * can be used again
+     * @param fileName name of the file (the class is the name without path)
+     * @param options options of the compiler
+     */
+    public void reset(String fileName, Options options) {
+        this.fileName = fileName;
+        this.className = new File(fileName).getName();
+        this.options = options;
+        code = new StringBuilder();
+        labelCount = 0;
+        conditionLabelCount = 0;
+        messages = new ArrayList<>();
+        sourceLines = new HashMap<>();
+        counterMap = null;
+        source = null;
+        stream = null;
     }
     
     private void initTable() {
@@ -63,42 +122,126 @@ public class CodeGenerator {
     }
     
     public void generatePushPop(int popOrPush, int segment, int offset) {
-        code += "\t" + table.get(popOrPush) + " "
+        code.append("\t" + table.get(popOrPush) + " "
                 + table.get(segment) + " "
                 + offset 
-                + "\n";
+                + "\n");
     }
     
     public void generateMathOrLogic(int opCode) {
-        code += "\t" + table.get(opCode)
-                + "\n";
+        code.append("\t" + table.get(opCode)
+                + "\n");
     }
     
     public void generateLabel(String label) {
-        code += "label" + " " + label
-                + "\n";
+        code.append("label" + " " + label
+                + "\n");
     }
 
     public void generateGoto(String label) {
-        code += "\t" + "goto" + " " + label
-                + "\n";
+        code.append("\t" + "goto" + " " + label
+                + "\n");
     }
     
     public void generateIfGoto(String label) {
-        code += "\t" + "if-goto" + " " + label
-                + "\n";
+        code.append("\t" + "if-goto" + " " + label
+                + "\n");
     }
     
     public void generateCall(String name, int numArgs) {
-        code += "\t" + "call" + " " + name + " "
+        code.append("\t" + "call" + " " + name + " "
                 + numArgs 
-                + "\n";                
+                + "\n");                
     }
     
     public void generateFunctionHeader(String name, int numParams) {
-        code += "function" + " " + name + " "
+        code.append("function" + " " + name + " "
                 + numParams 
-                + "\n";                
+                + "\n");                
+        functionStart = code.length();
+        functionName = name;
+        tailCallLabel = false;
+    }
+    
+    /**
+     * Turns a call of the current function to itself, at the end of the
+     * code generated so far, into a jump to the start of the function, so
+     * that the recursion does not grow the stack. The values of the call
+     * are stored in the arguments and the locals are set to 0, as a new
+     * call would do.
+     * Two patterns are recognized: the call alone (return callf f ( ... ))
+     * and the call stored in a local and pushed again (x = callf f ( ... )
+     * followed by return x).
+     * @param name name of the current function
+     * @param numArgs number of arguments of the function
+     * @param numLocals number of locals of the function
+     * @return true if the call was replaced by a jump
+     */
+    public boolean generateTailCall(String name, int numArgs, int numLocals) {
+        String call = "call " + name + " " + numArgs;
+        int start = instructionsStart(1);
+        if (start < 0 || !code.substring(start).trim().equals(call)) {
+            start = instructionsStart(3);
+            if (start < 0) {
+                return false;
+            }
+            String[] last = code.substring(start).split("\n");
+            for (int i = 0; i < last.length; i++) {
+                last[i] = last[i].trim();
+            }
+            if (!last[0].equals(call) || !last[1].startsWith("pop local ")
+                    || !last[2].equals("push" + last[1].substring(3))) {
+                return false;
+            }
+        }
+        code.setLength(start);
+        for (int i = numArgs - 1; i >= 0; i--) {
+            generatePushPop(POP, ARGUMENT, i);
+        }
+        for (int i = 0; i < numLocals; i++) {
+            generatePushPop(PUSH, CONSTANT, 0);
+            generatePushPop(POP, LOCAL, i);
+        }
+        generateGoto(TAIL_CALL_LABEL);
+        if (!tailCallLabel) {
+            code.insert(functionStart, "label " + TAIL_CALL_LABEL + "\n");
+            tailCallLabel = true;
+        }
+        return true;
+    }
+    
+    /**
+     * Position in the code where the last instructions start
+     * @param n number of instructions
+     * @return position, or -1 if the current function has fewer instructions
+     */
+    private int instructionsStart(int n) {
+        int start = code.length();
+        for (int i = 0; i < n; i++) {
+            if (start <= functionStart) {
+                return -1;
+            }
+            start = code.lastIndexOf("\n", start - 2) + 1;
+        }
+        return start < functionStart ? -1 : start;
+    }
+    
+    /**
+     * Records the source line of the current function
+     * @param line line of the source
+     */
+    public void recordFunctionLine(int line) {
+        sourceLines.put(functionName, line);
+    }
+    
+    /**
+     * Records the source line of the label at the start of a loop of the
+     * current function
+     * @param label name of the label
+     * @param line line of the source
+     */
+    public void recordLine(String label, int line) {
+        sourceLines.put(functionName + " " + label, line);
     }
     
     public String createLabel() {
@@ -107,11 +250,360 @@ public class CodeGenerator {
         return s;
     }
     
+    /**
+     * Label used inside the code of a condition
+     * @return new label
+     */
+    public String createConditionLabel() {
+        return "COND" + conditionLabelCount++;
+    }
+    
+    /**
+     * Position in the code, to take later the code generated after it
+     * @return position
+     */
+    public int mark() {
+        return code.length();
+    }
+    
+    /**
+     * Removes the code generated after a position
+     * @param mark position returned by mark
+     * @return code removed
+     */
+    public String cut(int mark) {
+        String text = code.substring(mark);
+        code.setLength(mark);
+        return text;
+    }
+    
+    /**
+     * Adds code taken with cut
+     * @param text code
+     */
+    public void paste(String text) {
+        code.append(text);
+    }
+    
+    /**
+     * Generates the code of a condition with jumps (short-circuit): the
+     * second operand of and/or is not evaluated when the first one decides
+     * the result, and each comparison is followed by its if-goto.
+     * @param c condition
+     * @param sense value of the condition that jumps
+     * @param label label to jump to; otherwise the code falls through
+     */
+    public void generateJump(Cond c, boolean sense, String label) {
+        switch (c.kind) {
+            case Cond.COMPARE:
+                code.append(c.left + c.right);
+                generateComparison(c.operator, sense);
+                generateIfGoto(label);
+                break;
+            case Cond.NOT:
+                generateJump(c.first, !sense, label);
+                break;
+            case Cond.AND:
+            case Cond.OR:
+                // and jumps when false as soon as an operand is false,
+                // or jumps when true as soon as an operand is true
+                boolean decides = c.kind == Cond.OR;
+                if (sense == decides) {
+                    generateJump(c.first, sense, label);
+                    generateJump(c.second, sense, label);
+                } else {
+                    String skip = createConditionLabel();
+                    generateJump(c.first, decides, skip);
+                    generateJump(c.second, sense, label);
+                    generateLabel(skip);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Generates a comparison of the two values in the stack, leaving true
+     * when the result is the given one
+     * @param operator comparison (Lexer.EQUALS, NEQ, LT, GT, LE or GE)
+     * @param sense result wanted
+     */
+    private void generateComparison(int operator, boolean sense) {
+        // x >= y is not ( x < y ), x <= y is not ( x > y ), x != y is
+        // not ( x == y )
+        boolean negated = operator == Lexer.GE || operator == Lexer.LE
+                || operator == Lexer.NEQ;
+        if (operator == Lexer.EQUALS || operator == Lexer.NEQ) {
+            generateMathOrLogic(EQ);
+        } else if (operator == Lexer.LT || operator == Lexer.GE) {
+            generateMathOrLogic(LT);
+        } else {
+            generateMathOrLogic(GT);
+        }
+        if (negated == sense) {
+            generateMathOrLogic(NOT);
+        }
+    }
+    
+    /**
+     * Completes the code of the program: adds the runtime, runs the
+     * optimisations and the stack analysis
+     * @return final code
+     * @throws CompileError if the program may use too much stack
+     */
+    public String finish() {
+        code.append(MULT_CODE);
+        String program = optimize(code.toString());
+        if (options.module) {
+            // the runtime is added by the linker, once for all the modules
+            program = Linker.objectHeader(fileName, program, source,
+                    options)
+                    + Linker.removeFunction(program, MULT_FUNCTION);
+        } else {
+            StackAnalyzer.check(program, className + ".main", options,
+                    messages);
+        }
+        return program;
+    }
+    
+    /**
+     * Starts the streaming mode: each function is optimized on its own
+     * and written to the output file when it ends, so the memory used does
+     * not depend on the size of the program. The optimisations that need
+     * the whole program are not done.
+     * @throws CompileError if the file cannot be written
+     */
+    public void openStream() {
+        try {
+            stream = new BufferedWriter(new FileWriter(fileName + extension()));
+        } catch (IOException e) {
+            throw new CompileError("Cannot write to file: " + fileName);
+        }
+        streamFunctions = 0;
+        streamChars = 0;
+        streamSlots = 0;
+        streamCompact = options.compact
+                ? new CompactCode(className + ".main", false) : null;
+        List<String> ignored = new ArrayList<>();
+        if (options.hasProfile()) {
+            ignored.add("-useprofile");
+        }
+        if (options.fold) {
+            ignored.add("-fold");
+        }
+        if (options.licm) {
+            ignored.add("-licm");
+        }
+        if (options.cse) {
+            ignored.add("-cse");
+        }
+        if (options.instrument) {
+            ignored.add("-instrument");
+        }
+        if (options.profile != null) {
+            ignored.add("-profile");
+        }
+        if (options.stackReport || options.stackLimit >= 0) {
+            ignored.add("stack analysis");
+        }
+        if (!ignored.isEmpty()) {
+            messages.add("Stream: " + String.join(", ", ignored)
+                    + " need the whole program, not done\n");
+        }
+    }
+    
+    /**
+     * Ends the code of a function. In streaming mode the function is
+     * optimized and written, and its code is not kept.
+     * @throws CompileError if the file cannot be written
+     */
+    public void endFunction() {
+        if (stream == null) {
+            return;
+        }
+        writeStream(code.toString());
+        code.setLength(0);
+        sourceLines.clear();
+    }
+    
+    /**
+     * Optimizes and writes the code of a function to the stream
+     * @param text code of the function
+     */
+    private void writeStream(String text) {
+        if (options.slots) {
+            LocalSlots slots = new LocalSlots();
+            text = slots.optimize(text);
+            streamSlots += slots.total();
+        }
+        if (streamCompact != null) {
+            text = streamCompact.optimize(text);
+        }
+        try {
+            stream.write(text);
+        } catch (IOException e) {
+            throw new CompileError("Cannot write to file: " + fileName);
+        }
+        streamFunctions++;
+        streamChars += text.length();
+    }
+    
+    /**
+     * Writes the runtime and closes the stream
+     */
+    private void closeStream() {
+        writeStream(MULT_CODE);
+        try {
+            stream.close();
+        } catch (IOException e) {
+            throw new CompileError("Cannot write to file: " + fileName);
+        }
+        stream = null;
+        if (options.slots) {
+            messages.add("Slots: " + streamSlots + " local slots removed\n");
+        }
+        if (streamCompact != null) {
+            messages.add(streamCompact.report());
+        }
+        messages.add("Stream: " + streamFunctions + " functions, "
+                + streamChars + " characters written to " + fileName
+                + extension() + "\n");
+    }
+    
+    /**
+     * Deletes the output of the streaming mode after an error, so that
+     * no incomplete program is left
+     */
+    public void discardStream() {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        stream = null;
+        new File(fileName + extension()).delete();
+    }
+    
     public void writeFile() {
-        code += "function Main.mult 2\npush constant 0\npop local 0\npush constant 0\npop local 1\nlabel label0\npush local 0\npush argument 1\nlt\nnot\nif-goto label1\npush local 0\npush constant 1\nadd\npop local 0\npush local 1\npush argument 0\nadd\npop local 1\ngoto label0\nlabel label1\npush local 1\nreturn";
-        writer.print(code);
-        writer.close();
+        if (stream != null) {
+            closeStream();
+            for (String message : messages) {
+                System.out.print(message);
+            }
+            return;
+        }
+        String program = finish();
+        for (String message : messages) {
+            System.out.print(message);
+        }
+        try {
+            PrintWriter writer = new PrintWriter(
+                    new FileWriter(fileName + extension()));
+            writer.print(program);
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Cannot write to file: " + fileName);
+        }
+        if (counterMap != null) {
+            try {
+                PrintWriter writer = new PrintWriter(
+                        new FileWriter(fileName + ".map"));
+                writer.print(counterMap);
+                writer.close();
+            } catch (IOException e) {
+                System.out.println("Cannot write to file: " + fileName
+                        + ".map");
+            }
+        }
         System.out.println("Generated code: ");
-        System.out.println(code);
+        System.out.println(program);
+        if (options.profile != null && !options.module) {
+            writeProfile(program);
+        }
+    }
+    
+    /**
+     * Runs the program on the VM interpreter and writes its profile to
+     * the file given in the options
+     * @param program final code of the program
+     */
+    private void writeProfile(String program) {
+        try {
+            Profile profile = Profile.record(program, className + ".main");
+            profile.write(options.profile);
+            System.out.println("Profile written to " + options.profile
+                    + " (" + profile.steps + " steps)");
+        } catch (IllegalStateException | IOException e) {
+            System.out.println("Profile Error");
+            System.out.println(e.getMessage());
+        }
+    }
+    
+    /**
+     * Extension of the output file: .vmo for modules, .vm for programs
+     */
+    private String extension() {
+        return options.module ? Linker.OBJECT_EXTENSION : ".vm";
+    }
+    
+    /**
+     * Runs the optimisation passes enabled in the options
+     * @param code code of the program
+     * @return optimized code
+     */
+    private String optimize(String code) {
+        // functions never called in the profile
+        Set<String> cold = new HashSet<>();
+        if (options.hasProfile()) {
+            ProfileGuided pgo = new ProfileGuided(options.profileText != null
+                    ? Profile.fromText(options.profileText)
+                    : Profile.read(options.useProfile));
+            code = pgo.optimize(code);
+            messages.add(pgo.report());
+            cold = pgo.cold;
+        }
+        if (options.fold) {
+            PureCalls fold = new PureCalls(options.foldSteps);
+            fold.skip = cold;
+            code = fold.optimize(code);
+            messages.add(fold.report());
+        }
+        if (options.licm) {
+            LoopInvariants licm = new LoopInvariants();
+            licm.skip = cold;
+            code = licm.optimize(code);
+            messages.add(licm.report());
+        }
+        if (options.cse) {
+            CommonSubexpressions cse = new CommonSubexpressions();
+            cse.skip = cold;
+            code = cse.optimize(code);
+            messages.add(cse.report());
+        }
+        if (options.slots) {
+            LocalSlots slots = new LocalSlots();
+            code = slots.optimize(code);
+            messages.add(slots.report());
+        }
+        if (options.instrument && !options.module) {
+            Instrumentation instrument = new Instrumentation(className,
+                    sourceLines);
+            code = instrument.optimize(code);
+            messages.add(instrument.report());
+            counterMap = instrument.map();
+        }
+        // the labels and functions of a profile have to be the ones of
+        // the code compiled with it
+        if (options.compact && options.profile == null) {
+            CompactCode compact = new CompactCode(className + ".main",
+                    !options.module);
+            code = compact.optimize(code);
+            messages.add(compact.report());
+        }
+        return code;
     }
 }
\ No newline at end of file
@@ -0,0 +1,391 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Common subexpression elimination within basic blocks.
+ *
+ * The parser emits the code of an expression as soon as it is recognized,
+ * so an expression like ( b + c ) * ( b + c ) evaluates b + c twice.
+ * This pass rebuilds the expressions of each basic block from the stack
+ * code, finds the ones that are repeated with no assignment to their
+ * operands in between, stores the first evaluation in a temp register and
+ * replaces the others with a push of that register.
+ *
+ * Only pure expressions are considered: pushes, arithmetic and logic
+ * operations and the multiplication of the runtime. Any other call ends
+ * the basic block.
+ */
+public class CommonSubexpressions {
+
+    // temp 0 is used by the parser to discard values
+    public static final int FIRST_TEMP = 1;
+    public static final int LAST_TEMP = 7;
+
+    // instructions eliminated and added (pop and push of the temps)
+    // in each function
+    Map<String, int[]> eliminated;
+    int[] current;
+    // functions that are not optimized
+    Set<String> skip;
+
+    public CommonSubexpressions() {
+        eliminated = new LinkedHashMap<>();
+        skip = new HashSet<>();
+    }
+
+    /**
+     * Optimizes the VM code
+     * @param code VM code
+     * @return optimized VM code
+     */
+    public String optimize(String code) {
+        List<VMFunction> functions = VMCode.parse(code);
+        for (VMFunction f : functions) {
+            if (skip.contains(f.name)) {
+                continue;
+            }
+            current = new int[2];
+            f.body = optimizeFunction(f.body);
+            if (current[0] > 0) {
+                eliminated.put(f.name, current);
+            }
+        }
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Number of instructions eliminated by the pass
+     * @return total number of instructions eliminated
+     */
+    public int total() {
+        int total = 0;
+        for (int[] n : eliminated.values()) {
+            total += n[0];
+        }
+        return total;
+    }
+
+    /**
+     * Report of the instructions eliminated in each function
+     * @return report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, int[]> e : eliminated.entrySet()) {
+            sb.append("CSE: " + e.getKey() + ": " + e.getValue()[0]
+                    + " instructions eliminated, " + e.getValue()[1]
+                    + " added\n");
+        }
+        sb.append("CSE: " + total() + " instructions eliminated\n");
+        return sb.toString();
+    }
+
+    /**
+     * Eliminates the common subexpressions of the basic blocks of a function
+     * @param body instructions of the function
+     * @return new instructions
+     */
+    private List<String[]> optimizeFunction(List<String[]> body) {
+        // first find the repeated expressions of every basic block
+        List<List<Expression>> groups = new ArrayList<>();
+        List<Expression> stack = new ArrayList<>();
+        Map<String, List<Expression>> available = new HashMap<>();
+        for (int i = 0; i < body.size(); i++) {
+            String[] instruction = body.get(i);
+            Expression e = null;
+            switch (instruction[0]) {
+                case "push":
+                    e = new Expression("[" + instruction[1] + " "
+                            + instruction[2] + "]", i, i + 1, 0);
+                    stack.add(e);
+                    break;
+                case "add":
+                case "sub":
+                case "eq":
+                case "gt":
+                case "lt":
+                case "and":
+                case "or":
+                    e = Expression.combine(pop(stack), pop(stack),
+                            instruction[0], i);
+                    stack.add(e);
+                    break;
+                case "neg":
+                case "not":
+                    e = Expression.unary(pop(stack), instruction[0], i);
+                    stack.add(e);
+                    break;
+                case "pop":
+                    pop(stack);
+                    // the expressions that use the variable are no longer
+                    // available
+                    String variable = "[" + instruction[1] + " "
+                            + instruction[2] + "]";
+                    available.keySet().removeIf(k -> k.contains(variable));
+                    break;
+                default:
+                    if (instruction[0].equals("call")
+                            && instruction[1].equals(CodeGenerator.MULT_FUNCTION)) {
+                        e = Expression.combine(pop(stack), pop(stack),
+                                "mult", i);
+                        stack.add(e);
+                    } else {
+                        // end of the basic block
+                        stack.clear();
+                        available.clear();
+                        if (instruction[0].equals("call")) {
+                            // the result of the call, it is not an operand
+                            // of an expression of the previous block
+                            stack.add(new Expression(null, i, i + 1, 0));
+                        }
+                    }
+                    break;
+            }
+            if (e != null && e.key != null && e.operations > 0) {
+                List<Expression> group = available.get(e.key);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.add(group);
+                    available.put(e.key, group);
+                }
+                group.add(e);
+            }
+        }
+        return rewrite(body, chooseGroups(groups));
+    }
+
+    private Expression pop(List<Expression> stack) {
+        if (stack.isEmpty()) {
+            // the value was pushed before the start of the basic block
+            return null;
+        }
+        return stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * Chooses the groups worth eliminating. Bigger expressions go first;
+     * occurrences inside an expression that is already replaced are
+     * discarded.
+     * @param groups occurrences of each repeated expression
+     * @return groups to eliminate, the first occurrence is kept
+     */
+    private List<List<Expression>> chooseGroups(List<List<Expression>> groups) {
+        List<List<Expression>> candidates = new ArrayList<>();
+        for (List<Expression> group : groups) {
+            if (group.size() > 1) {
+                candidates.add(group);
+            }
+        }
+        candidates.sort((a, b) -> b.get(0).length() - a.get(0).length());
+        List<Expression> replaced = new ArrayList<>();
+        List<List<Expression>> chosen = new ArrayList<>();
+        for (List<Expression> group : candidates) {
+            List<Expression> occurrences = new ArrayList<>();
+            for (Expression e : group) {
+                if (!insideAny(e, replaced)) {
+                    occurrences.add(e);
+                }
+            }
+            if (occurrences.size() < 2 || !worthIt(occurrences)) {
+                continue;
+            }
+            chosen.add(occurrences);
+            replaced.addAll(occurrences.subList(1, occurrences.size()));
+        }
+        return chosen;
+    }
+
+    private boolean insideAny(Expression e, List<Expression> ranges) {
+        for (Expression r : ranges) {
+            if (e.start >= r.start && e.end <= r.end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An elimination costs two instructions (pop and push of the temp)
+     * and saves all but one instruction of each repeated occurrence.
+     * A multiplication is always worth saving, it is a call to a loop.
+     * @param occurrences occurrences of the expression
+     * @return true if the elimination makes the code faster
+     */
+    private boolean worthIt(List<Expression> occurrences) {
+        Expression first = occurrences.get(0);
+        int saved = (occurrences.size() - 1) * (first.length() - 1) - 2;
+        return saved > 0 || first.key.contains(" mult ");
+    }
+
+    /**
+     * Rewrites the instructions of a function
+     * @param body instructions of the function
+     * @param chosen groups to eliminate
+     * @return new instructions
+     */
+    private List<String[]> rewrite(List<String[]> body,
+            List<List<Expression>> chosen) {
+        // temps are assigned per group; a temp is free again after the
+        // last occurrence of its group
+        Map<Integer, Integer> storeAfter = new HashMap<>();
+        Map<Integer, Expression> replaceAt = new HashMap<>();
+        List<int[]> busy = new ArrayList<>();
+        chosen.sort((a, b) -> a.get(0).end - b.get(0).end);
+        for (List<Expression> group : chosen) {
+            int from = group.get(0).end;
+            int to = group.get(group.size() - 1).end;
+            int temp = freeTemp(busy, from, to);
+            if (temp < 0) {
+                continue;
+            }
+            busy.add(new int[] {temp, from, to});
+            storeAfter.put(from - 1, temp);
+            for (Expression e : group.subList(1, group.size())) {
+                e.temp = temp;
+                replaceAt.put(e.start, e);
+            }
+        }
+        List<String[]> result = new ArrayList<>();
+        for (int i = 0; i < body.size(); i++) {
+            Expression e = replaceAt.get(i);
+            if (e != null) {
+                result.add(new String[] {"push", "temp", "" + e.temp});
+                current[0] += e.length();
+                current[1]++;
+                i = e.end - 1;
+                continue;
+            }
+            result.add(body.get(i));
+            Integer temp = storeAfter.get(i);
+            if (temp != null) {
+                result.add(new String[] {"pop", "temp", "" + temp});
+                result.add(new String[] {"push", "temp", "" + temp});
+                current[1] += 2;
+            }
+        }
+        return result;
+    }
+
+    private int freeTemp(List<int[]> busy, int from, int to) {
+        for (int temp = FIRST_TEMP; temp <= LAST_TEMP; temp++) {
+            boolean free = true;
+            for (int[] b : busy) {
+                if (b[0] == temp && from <= b[2] && b[1] <= to) {
+                    free = false;
+                }
+            }
+            if (free) {
+                return temp;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Main program to test. Compares the output of random programs with
+     * and without the optimisation, using the VM interpreter.
+     * @param args number of random programs (default 1000)
+     */
+    public static void main(String [] args) {
+        int programs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Random random = new Random(26);
+        int failures = 0;
+        int total = 0;
+        for (int p = 0; p < programs; p++) {
+            String code = randomProgram(random);
+            CommonSubexpressions cse = new CommonSubexpressions();
+            String optimized = cse.optimize(code);
+            total += cse.total();
+            VMInterpreter before = new VMInterpreter(code);
+            VMInterpreter after = new VMInterpreter(optimized);
+            before.run("Main.main");
+            after.run("Main.main");
+            if (!before.output.equals(after.output)) {
+                failures++;
+                System.out.println("Different output for:\n" + code);
+            }
+        }
+        System.out.println(programs + " programs, " + failures + " failures, "
+                + total + " instructions eliminated");
+
+        // callf f ( 1 ) + ( 4 + 5 ) and a value pushed before the call
+        // + ( 4 + 5 ): the left operands of the additions are not known,
+        // they are not the same expression
+        String code = "function Main.main 2\n"
+                + "\tpush constant 3\n"
+                + "\tpush constant 1\n"
+                + "\tcall Main.f 1\n"
+                + "\tpush constant 4\n\tpush constant 5\n\tadd\n"
+                + "\tadd\n\tpop local 0\n"
+                + "\tpush constant 4\n\tpush constant 5\n\tadd\n"
+                + "\tadd\n\tpop local 1\n"
+                + "\tpush local 0\n\tcall Output.printInt 1\n"
+                + "\tpop temp 0\n"
+                + "\tpush local 1\n\tcall Output.printInt 1\n"
+                + "\tpop temp 0\n"
+                + "\treturn\n"
+                + "function Main.f 0\n"
+                + "\tpush argument 0\n\treturn\n";
+        VMInterpreter before = new VMInterpreter(code);
+        VMInterpreter after = new VMInterpreter(
+                new CommonSubexpressions().optimize(code));
+        before.run("Main.main");
+        after.run("Main.main");
+        System.out.println("Call result: " + before.output + " -> "
+                + after.output + " "
+                + (before.output.equals(after.output) ? "ok" : "FAIL"));
+    }
+
+    /**
+     * Generates a program that assigns random expressions to three local
+     * variables and prints them. Subexpressions are reused so that there
+     * is something to eliminate.
+     */
+    private static String randomProgram(Random random) {
+        StringBuilder sb = new StringBuilder("function Main.main 3\n");
+        for (int i = 0; i < 3; i++) {
+            sb.append("\tpush constant " + random.nextInt(20) + "\n");
+            sb.append("\tpop local " + i + "\n");
+        }
+        List<String> pool = new ArrayList<>();
+        for (int s = 0; s < 4; s++) {
+            sb.append(randomExpression(random, pool, 3));
+            sb.append("\tpop local " + random.nextInt(3) + "\n");
+            for (int i = 0; i < 3; i++) {
+                sb.append("\tpush local " + i + "\n");
+                sb.append("\tcall Output.printInt 1\n");
+                sb.append("\tpop temp 0\n");
+            }
+        }
+        sb.append("\treturn\n");
+        sb.append(CodeGenerator.MULT_CODE);
+        return sb.toString();
+    }
+
+    private static String randomExpression(Random random, List<String> pool,
+            int depth) {
+        if (!pool.isEmpty() && random.nextInt(3) == 0) {
+            return pool.get(random.nextInt(pool.size()));
+        }
+        String e;
+        if (depth == 0 || random.nextInt(4) == 0) {
+            e = random.nextBoolean()
+                    ? "\tpush local " + random.nextInt(3) + "\n"
+                    : "\tpush constant " + random.nextInt(10) + "\n";
+        } else {
+            String left = randomExpression(random, pool, depth - 1);
+            String right = randomExpression(random, pool, depth - 1);
+            String[] operations = {"add", "sub", "call Main.mult 2", "lt"};
+            e = left + right + "\t"
+                    + operations[random.nextInt(operations.length)] + "\n";
+        }
+        pool.add(e);
+        return e;
+    }
+}
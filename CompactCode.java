@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Makes the generated code smaller.
+ *
+ * - Code that cannot be reached is removed (the loop after the return of
+ *   main, the return of enddef after a return) together with the labels
+ *   that are not the target of a jump.
+ * - Labels are renamed L0, L1, ... in each function, in the order they
+ *   appear; labels only need to be unique inside their function.
+ * - Functions with the same code (after renaming the labels, and taking
+ *   calls of a function to itself as equal) are merged: one of them is
+ *   kept and the calls to the others are redirected to it. This is
+ *   repeated, as merging can make the callers equal too.
+ */
+public class CompactCode {
+
+    // Prefix of the compact labels
+    public static final String LABEL_PREFIX = "L";
+    // Name used for the calls of a function to itself when comparing
+    private static final String SELF = "<self>";
+
+    // function kept for each function merged
+    Map<String, String> merged;
+    int removed;
+    String entry;
+    boolean merge;
+
+    /**
+     * Constructor
+     * @param entry name of the main function, it is never removed
+     * @param merge merge the functions with the same code (not possible
+     *        in modules, as other modules call their functions by name)
+     */
+    public CompactCode(String entry, boolean merge) {
+        this.entry = entry;
+        this.merge = merge;
+        merged = new LinkedHashMap<>();
+    }
+
+    /**
+     * Optimizes the VM code
+     * @param code VM code
+     * @return optimized VM code
+     */
+    public String optimize(String code) {
+        List<VMFunction> functions = VMCode.parse(code);
+        for (VMFunction f : functions) {
+            int size = f.body.size();
+            removeUnreachable(f);
+            renameLabels(f);
+            removed += size - f.body.size();
+        }
+        while (merge && mergeFunctions(functions)) {
+            // repeat until no functions are equal
+        }
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Report of the changes
+     * @return report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : merged.entrySet()) {
+            sb.append("Compact: " + e.getKey() + " merged into "
+                    + e.getValue() + "\n");
+        }
+        sb.append("Compact: " + merged.size() + " functions merged, "
+                + removed + " instructions removed\n");
+        return sb.toString();
+    }
+
+    /**
+     * Removes the instructions that cannot be executed and the labels that
+     * are not the target of a jump
+     * @param f function
+     */
+    private void removeUnreachable(VMFunction f) {
+        List<String[]> body = f.body;
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < body.size(); i++) {
+            if (body.get(i)[0].equals("label")) {
+                labels.put(body.get(i)[1], i);
+            }
+        }
+        BitSet reachable = new BitSet(body.size());
+        List<Integer> pending = new ArrayList<>();
+        pending.add(0);
+        Set<String> targets = new HashSet<>();
+        while (!pending.isEmpty()) {
+            int i = pending.remove(pending.size() - 1);
+            if (i >= body.size() || reachable.get(i)) {
+                continue;
+            }
+            reachable.set(i);
+            String[] instruction = body.get(i);
+            switch (instruction[0]) {
+                case "return":
+                    break;
+                case "goto":
+                case "if-goto":
+                    targets.add(instruction[1]);
+                    if (labels.containsKey(instruction[1])) {
+                        pending.add(labels.get(instruction[1]));
+                    }
+                    if (instruction[0].equals("if-goto")) {
+                        pending.add(i + 1);
+                    }
+                    break;
+                default:
+                    pending.add(i + 1);
+                    break;
+            }
+        }
+        List<String[]> result = new ArrayList<>();
+        for (int i = 0; i < body.size(); i++) {
+            String[] instruction = body.get(i);
+            if (reachable.get(i) && !(instruction[0].equals("label")
+                    && !targets.contains(instruction[1]))) {
+                result.add(instruction);
+            }
+        }
+        f.body = result;
+    }
+
+    /**
+     * Renames the labels of a function to L0, L1, ...
+     * @param f function
+     */
+    private void renameLabels(VMFunction f) {
+        Map<String, String> names = new HashMap<>();
+        for (String[] instruction : f.body) {
+            if (instruction[0].equals("label") || instruction[0].equals("goto")
+                    || instruction[0].equals("if-goto")) {
+                String name = names.get(instruction[1]);
+                if (name == null) {
+                    name = LABEL_PREFIX + names.size();
+                    names.put(instruction[1], name);
+                }
+                instruction[1] = name;
+            }
+        }
+    }
+
+    /**
+     * Merges the functions with the same code
+     * @param functions functions of the program
+     * @return true if a function was merged
+     */
+    private boolean mergeFunctions(List<VMFunction> functions) {
+        Map<String, String> kept = new HashMap<>();
+        Map<String, String> replaced = new HashMap<>();
+        for (VMFunction f : functions) {
+            // the runtime is removed from modules, nothing can depend on it
+            if (f.name.equals(CodeGenerator.MULT_FUNCTION)) {
+                continue;
+            }
+            String key = canonical(f);
+            String other = kept.get(key);
+            if (other == null) {
+                kept.put(key, f.name);
+            } else if (f.name.equals(entry)) {
+                replaced.put(other, f.name);
+                kept.put(key, f.name);
+            } else {
+                replaced.put(f.name, other);
+            }
+        }
+        if (replaced.isEmpty()) {
+            return false;
+        }
+        // a function kept before main was found
+        for (Map.Entry<String, String> e : replaced.entrySet()) {
+            while (replaced.containsKey(e.getValue())) {
+                e.setValue(replaced.get(e.getValue()));
+            }
+        }
+        functions.removeIf(f -> replaced.containsKey(f.name));
+        for (VMFunction f : functions) {
+            for (String[] instruction : f.body) {
+                if (instruction[0].equals("call")
+                        && replaced.containsKey(instruction[1])) {
+                    instruction[1] = replaced.get(instruction[1]);
+                }
+            }
+        }
+        // functions merged before into a function merged now
+        for (Map.Entry<String, String> e : merged.entrySet()) {
+            if (replaced.containsKey(e.getValue())) {
+                e.setValue(replaced.get(e.getValue()));
+            }
+        }
+        merged.putAll(replaced);
+        return true;
+    }
+
+    /**
+     * Text of a function used to compare it with the others
+     * @param f function, with its labels renamed
+     * @return number of locals and instructions
+     */
+    private String canonical(VMFunction f) {
+        StringBuilder sb = new StringBuilder("" + f.numLocals);
+        for (String[] instruction : f.body) {
+            sb.append('\n');
+            if (instruction[0].equals("call") && instruction[1].equals(f.name)) {
+                sb.append("call " + SELF + " " + instruction[2]);
+            } else {
+                sb.append(String.join(" ", instruction));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Main program to test
+     * @param args
+     */
+    public static void main(String [] args) {
+        String code = "function Main.main 0\n"
+                + "\tpush constant 5\n"
+                + "\tcall Main.f 1\n"
+                + "\tpush constant 5\n"
+                + "\tcall Main.g 1\n"
+                + "\tadd\n"
+                + "\tcall Output.printInt 1\n"
+                + "\tpop temp 0\n"
+                + "\treturn\n"
+                + "label END_OF_PROGRAM\n"
+                + "\tgoto END_OF_PROGRAM\n"
+                + "function Main.f 0\n"
+                + "\tpush argument 0\n"
+                + "\tpush constant 0\n"
+                + "\teq\n"
+                + "\tif-goto label4\n"
+                + "\tpush argument 0\n"
+                + "\tpush constant 1\n"
+                + "\tsub\n"
+                + "\tcall Main.f 1\n"
+                + "\treturn\n"
+                + "label label4\n"
+                + "\tpush constant 7\n"
+                + "\treturn\n"
+                + "\treturn\n"
+                + "function Main.g 0\n"
+                + "\tpush argument 0\n"
+                + "\tpush constant 0\n"
+                + "\teq\n"
+                + "\tif-goto label9\n"
+                + "\tpush argument 0\n"
+                + "\tpush constant 1\n"
+                + "\tsub\n"
+                + "\tcall Main.g 1\n"
+                + "\treturn\n"
+                + "label label9\n"
+                + "\tpush constant 7\n"
+                + "\treturn\n"
+                + "\treturn\n";
+        CompactCode compact = new CompactCode("Main.main", true);
+        String optimized = compact.optimize(code);
+        System.out.print(compact.report());
+        VMInterpreter before = new VMInterpreter(code);
+        VMInterpreter after = new VMInterpreter(optimized);
+        before.run("Main.main");
+        after.run("Main.main");
+        System.out.println(before.output.equals(after.output) + " "
+                + code.length() + " -> " + optimized.length() + " characters");
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.List;
+
+/**
+ * Result of a compilation
+ */
+public class CompilationResult {
+
+    boolean success;
+    // generated code, null if there is an error
+    String code;
+    // reports of the optimisations and the analysis
+    List<String> messages;
+    // message of the error, null if there is none
+    String error;
+    // map file of the counters of -instrument, null if there are none
+    String counterMap;
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getCounterMap() {
+        return counterMap;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof CompilationResult)) {
+            return false;
+        }
+        CompilationResult r = (CompilationResult) other;
+        return success == r.success && String.valueOf(code).equals(
+                String.valueOf(r.code)) && messages.equals(r.messages)
+                && String.valueOf(error).equals(String.valueOf(r.error))
+                && String.valueOf(counterMap).equals(
+                        String.valueOf(r.counterMap));
+    }
+
+    @Override
+    public int hashCode() {
+        return String.valueOf(code).hashCode();
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * Error found while compiling a program. The message has the same text
+ * that the compiler prints (line number and description).
+ */
+public class CompileError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CompileError(String message) {
+        super(message);
+    }
+}
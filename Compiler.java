@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiler that works in memory: the source is given as text and the VM
+ * code is returned with the messages of the compiler, without reading or
+ * writing files and without printing.
+ *
+ * A compiler keeps its lexer, parser and code generator, so compiling
+ * many sources with the same object avoids creating them each time. An
+ * object must be used by one thread at a time; CompilerPool shares
+ * compilers between threads.
+ */
+public class Compiler {
+
+    Parser parser;
+
+    public Compiler() {
+        parser = new Parser();
+    }
+
+    /**
+     * Compiles a program
+     * @param source source code
+     * @param options options of the compiler, the file name is the name of
+     *        the class of the generated functions. They are not modified.
+     *        A profile is read from options.useProfile unless its contents
+     *        are given in options.profileText.
+     * @return generated code and messages, or the error found
+     */
+    public CompilationResult compile(CharSequence source, Options options) {
+        CompilationResult result = new CompilationResult();
+        try {
+            parser.reset(source, options);
+            if (!parser.parseProgram()) {
+                throw new CompileError("Expected end of file after endprogram");
+            }
+            result.code = parser.cg.finish();
+            result.counterMap = parser.cg.counterMap;
+            result.success = true;
+        } catch (CompileError e) {
+            result.error = e.getMessage();
+        }
+        result.messages = new ArrayList<>(parser.cg.messages);
+        return result;
+    }
+
+    /**
+     * Main program to test. Compiles the same sources in memory from
+     * several threads and compares the code with a sequential compilation.
+     * @param args number of compilations (default 2000)
+     */
+    public static void main(String [] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String[] sources = {
+            "program\ndef main ( )\nint x\nx = 3\nprint ( x + 4 )\nenddef\nendprogram\n",
+            "program\nint s\ndef main ( )\ns = callf f ( 5 )\nprint ( s )\nenddef\n"
+                    + "def f ( int n )\nint r\nr = 0\nwhile ( n > 0 )\nr = r + n\n"
+                    + "n = n - 1\nendwhile\nreturn r\nenddef\nendprogram\n",
+            "program\ndef main ( )\nint x\nx = \nenddef\nendprogram\n",
+        };
+        Options options = new Options();
+        options.fold = true;
+        options.licm = true;
+        options.cse = true;
+        List<CompilationResult> expected = new ArrayList<>();
+        Compiler compiler = new Compiler();
+        for (String source : sources) {
+            expected.add(compiler.compile(source, options));
+        }
+        CompilerPool pool = new CompilerPool();
+        int[] failures = new int[1];
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                for (int i = first; i < count; i += threads.length) {
+                    int k = i % sources.length;
+                    CompilationResult r = pool.compile(sources[k], options);
+                    if (!r.equals(expected.get(k))) {
+                        synchronized (failures) {
+                            failures[0]++;
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (CompilationResult r : expected) {
+            System.out.println(r.success ? "ok" : r.error);
+        }
+        System.out.println(count + " compilations in " + threads.length
+                + " threads, " + failures[0] + " failures");
+    }
+}
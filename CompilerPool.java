@@ -0,0 +1,29 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pool of compilers that can be used from many threads at the same time.
+ * Each compilation takes a free compiler from the pool, or creates one
+ * when all of them are in use, and gives it back at the end.
+ */
+public class CompilerPool {
+
+    ConcurrentLinkedQueue<Compiler> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Compiles a program in memory
+     * @param source source code
+     * @param options options of the compiler, they are not modified
+     * @return generated code and messages, or the error found
+     */
+    public CompilationResult compile(CharSequence source, Options options) {
+        Compiler compiler = free.poll();
+        if (compiler == null) {
+            compiler = new Compiler();
+        }
+        try {
+            return compiler.compile(source, options);
+        } finally {
+            free.add(compiler);
+        }
+    }
+}
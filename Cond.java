@@ -0,0 +1,41 @@
+/**
+ * Condition of a statement, kept until its jumps are generated. The code
+ * of the expressions of a comparison is kept as text.
+ */
+public class Cond {
+
+    static final int COMPARE = 0;
+    static final int AND = 1;
+    static final int OR = 2;
+    static final int NOT = 3;
+    // an expression without a comparison, only valid inside parenthesis
+    // followed by the rest of the expression
+    static final int EXPR = 4;
+
+    int kind;
+    // and, or, not
+    Cond first;
+    Cond second;
+    // comparison (left is also the code of an expression)
+    String left;
+    int operator;
+    String right;
+
+    public Cond(int kind, Cond first, Cond second) {
+        this.kind = kind;
+        this.first = first;
+        this.second = second;
+    }
+
+    public Cond(String left, int operator, String right) {
+        this.kind = COMPARE;
+        this.left = left;
+        this.operator = operator;
+        this.right = right;
+    }
+
+    public Cond(String code) {
+        this.kind = EXPR;
+        this.left = code;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * An expression found in the stack code: the instructions from start
+ * (inclusive) to end (exclusive) compute its value.
+ */
+public class Expression {
+
+    // canonical text of the expression, null if it cannot be reused
+    String key;
+    int start;
+    int end;
+    int operations;
+    int temp;
+
+    public Expression(String key, int start, int end, int operations) {
+        this.key = key;
+        this.start = start;
+        this.end = end;
+        this.operations = operations;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * Builds the expression of a binary operation
+     * @param right second operand
+     * @param left first operand
+     * @param operation name of the operation
+     * @param position position of the instruction of the operation
+     * @return expression, with a null key if an operand cannot be reused,
+     *         or null if an operand is unknown (computed before the code
+     *         that is analysed)
+     */
+    public static Expression combine(Expression right, Expression left,
+            String operation, int position) {
+        if (right == null || left == null) {
+            return null;
+        }
+        if (right.key == null || left.key == null) {
+            return new Expression(null, position, position + 1, 0);
+        }
+        return new Expression("(" + left.key + " " + operation + " "
+                + right.key + ")", left.start, position + 1,
+                left.operations + right.operations + 1);
+    }
+
+    /**
+     * Builds the expression of a unary operation
+     * @param operand operand
+     * @param operation name of the operation
+     * @param position position of the instruction of the operation
+     * @return expression, with a null key if the operand cannot be reused,
+     *         or null if it is unknown
+     */
+    public static Expression unary(Expression operand, String operation,
+            int position) {
+        if (operand == null) {
+            return null;
+        }
+        if (operand.key == null) {
+            return new Expression(null, position, position + 1, 0);
+        }
+        return new Expression("(" + operation + " " + operand.key + ")",
+                operand.start, position + 1, operand.operations + 1);
+    }
+}
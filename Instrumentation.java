@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counters added to the generated code, to find the hot spots of a
+ * program when it runs on the VM emulator or on the Hack computer.
+ *
+ * Each function counts its calls and each loop counts the times its start
+ * is reached (the iterations of a repeat, the tests of a while). The
+ * counters are static variables placed after the ones of the program. A
+ * generated function prints all the counters, one per line, and it is
+ * called before main returns. The map file tells the function and the
+ * source line of each counter.
+ *
+ * Counters are 16 bits, as all the values of the Hack platform: after
+ * 32767 they become negative.
+ */
+public class Instrumentation {
+
+    // Name of the function that prints the counters, in the class of main
+    public static final String DUMP_FUNCTION = "dump_counters";
+    // The static variables start at RAM 16
+    public static final int FIRST_STATIC_ADDRESS = 16;
+
+    String className;
+    // source line of each function, and of the start label of each loop
+    // of the source (by function and label)
+    Map<String, Integer> lines;
+    // lines of the map file
+    List<String> counters;
+    int base;
+
+    /**
+     * Constructor
+     * @param className class of the program, where main is
+     * @param lines source line of the functions and of the loop labels
+     *        (function and label separated by a space)
+     */
+    public Instrumentation(String className, Map<String, Integer> lines) {
+        this.className = className;
+        this.lines = lines;
+        counters = new ArrayList<>();
+    }
+
+    /**
+     * Adds the counters to the VM code
+     * @param code VM code
+     * @return VM code with the counters
+     * @throws CompileError if there are not enough static variables
+     */
+    public String optimize(String code) {
+        List<VMFunction> functions = VMCode.parse(code);
+        base = 0;
+        for (VMFunction f : functions) {
+            for (String[] instruction : f.body) {
+                if (instruction.length > 2 && instruction[1].equals("static")) {
+                    base = Math.max(base, Integer.parseInt(instruction[2]) + 1);
+                }
+            }
+        }
+        for (VMFunction f : functions) {
+            List<String[]> entry = counter(f.name, "entry", f.name);
+            for (int i = 0; i < f.body.size(); i++) {
+                String[] instruction = f.body.get(i);
+                if (!instruction[0].equals("label")) {
+                    continue;
+                }
+                // only the loops of the source (not the loop at the end of
+                // main or the loops of the runtime)
+                String key = f.name + " " + instruction[1];
+                if (lines.containsKey(key) && isLoop(f.body, i)) {
+                    f.body.addAll(i + 1, counter(f.name, "loop", key));
+                }
+            }
+            // before the label of the tail calls, they are not counted
+            f.body.addAll(0, entry);
+        }
+        if (base + counters.size() > Linker.MAX_STATICS) {
+            throw new CompileError("Instrumentation Error\n"
+                    + counters.size() + " counters do not fit in the "
+                    + (Linker.MAX_STATICS - base) + " free static variables");
+        }
+        String dump = className + "." + DUMP_FUNCTION;
+        for (VMFunction f : functions) {
+            if (!f.name.equals(className + ".main")) {
+                continue;
+            }
+            for (int i = 0; i < f.body.size(); i++) {
+                if (f.body.get(i)[0].equals("return")) {
+                    f.body.add(i, new String[] {"call", dump, "0"});
+                    f.body.add(i + 1, new String[] {"pop", "temp", "0"});
+                    i += 2;
+                }
+            }
+        }
+        functions.add(dumpFunction(dump));
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Returns true if the label is the start of a loop: a later
+     * instruction jumps back to it
+     */
+    private boolean isLoop(List<String[]> body, int position) {
+        String label = body.get(position)[1];
+        for (int i = position + 1; i < body.size(); i++) {
+            String[] instruction = body.get(i);
+            if ((instruction[0].equals("goto")
+                    || instruction[0].equals("if-goto"))
+                    && instruction[1].equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a counter
+     * @param function function where it is
+     * @param kind entry or loop
+     * @param name function, or function and label of the loop, to find
+     *        the source line
+     * @return instructions that increment the counter
+     */
+    private List<String[]> counter(String function, String kind,
+            String name) {
+        int index = counters.size();
+        int variable = base + index;
+        Integer line = lines.get(name);
+        counters.add(index + " " + (FIRST_STATIC_ADDRESS + variable) + " "
+                + function + " " + kind + " "
+                + (line == null ? "-" : "" + line));
+        List<String[]> code = new ArrayList<>();
+        code.add(new String[] {"push", "static", "" + variable});
+        code.add(new String[] {"push", "constant", "1"});
+        code.add(new String[] {"add"});
+        code.add(new String[] {"pop", "static", "" + variable});
+        return code;
+    }
+
+    /**
+     * Builds the function that prints the counters
+     * @param name name of the function
+     * @return function
+     */
+    private VMFunction dumpFunction(String name) {
+        VMFunction f = new VMFunction(name, 0);
+        for (int i = 0; i < counters.size(); i++) {
+            f.body.add(new String[] {"push", "static", "" + (base + i)});
+            f.body.add(new String[] {"call", "Output.printInt", "1"});
+            f.body.add(new String[] {"pop", "temp", "0"});
+            f.body.add(new String[] {"call", "Output.println", "0"});
+            f.body.add(new String[] {"pop", "temp", "0"});
+        }
+        f.body.add(new String[] {"push", "constant", "0"});
+        f.body.add(new String[] {"return"});
+        return f;
+    }
+
+    /**
+     * Text of the map file: for each counter, its index (order in which
+     * it is printed), its RAM address, function, kind and source line
+     * @return map
+     */
+    public String map() {
+        StringBuilder sb = new StringBuilder(
+                "# counter address function kind line\n");
+        for (String counter : counters) {
+            sb.append(counter).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Report of the counters added
+     * @return report
+     */
+    public String report() {
+        return "Instrument: " + counters.size() + " counters in static "
+                + base + " to " + (base + counters.size() - 1) + "\n";
+    }
+}
@@ -4,9 +4,18 @@
  * in the source file.
  */
 import java.util.Scanner;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
 
 /**
  * This lexer returns tokens to the Parser
@@ -44,13 +53,34 @@ public class Lexer {
     public static final int GE = 29;
     public static final int LE = 30;
     public static final int MULT = 31;
+    public static final int AND = 32;
+    public static final int OR = 33;
+    public static final int NOT = 34;
     public static final int INVALIDTOKEN = 98;
     public static final int EOF = 99;
     
-    ArrayList<Token> table;
+    // Keywords and symbols of the language. The table is shared by all
+    // the lexers and never changes.
+    static final List<Token> table = keywordTable();
+    static final Map<String, Token> keywords = keywordMap();
+    
+    // Sources of this size (in characters) or bigger are split in chunks
+    // that are tokenized in parallel
+    public static final int PARALLEL_THRESHOLD = 1 << 20;
     
     Scanner fileScanner = null;
     Scanner lineScanner = null;
+    // tokens of the whole source when it was tokenized in parallel, or
+    // of the current chunk of a streamed source
+    Token[] tokens = null;
+    int nextToken;
+    // streamed source, read a chunk at a time (null: not streamed or
+    // finished)
+    BufferedReader reader = null;
+    // lines ended by the chunks read before
+    int chunkLines;
+    // the last chunk read ended inside a line
+    boolean partialLine;
     
     int lineNumber = 0;
     
@@ -60,8 +90,68 @@ public class Lexer {
      * @throws FileNotFoundException 
      */
     public Lexer(String fileName) throws FileNotFoundException {
-        fileScanner = new Scanner(new File(fileName + ".txt"));
-        table = new ArrayList<>();
+        this(fileName, true);
+    }
+    
+    /**
+     * Constructor
+     * @param fileName Name of the input file
+     * @param parallel tokenize big files in parallel (the whole file is
+     *        read in memory); otherwise the file is streamed, a chunk at
+     *        a time
+     * @throws FileNotFoundException 
+     */
+    public Lexer(String fileName, boolean parallel)
+            throws FileNotFoundException {
+        File file = new File(fileName + ".txt");
+        if (!parallel) {
+            // the same charset as the Scanner
+            reader = new BufferedReader(new FileReader(file));
+            chunkLines = 0;
+            readChunk();
+            return;
+        }
+        if (file.length() < PARALLEL_THRESHOLD) {
+            fileScanner = new Scanner(file);
+            return;
+        }
+        try {
+            // the same charset as the Scanner
+            tokens = ParallelLexer.tokenize(
+                    new String(Files.readAllBytes(file.toPath())),
+                    ParallelLexer.CHUNK_SIZE);
+        } catch (IOException e) {
+            throw new FileNotFoundException(file.getPath());
+        }
+    }
+    
+    /**
+     * Constructor for a lexer without input. The input is given with
+     * reset, so that the same lexer can be used for many sources.
+     */
+    public Lexer() {
+    }
+    
+    /**
+     * Starts reading a new source from memory
+     * @param source source code
+     */
+    public void reset(CharSequence source) {
+        lineScanner = null;
+        reader = null;
+        lineNumber = 0;
+        if (source.length() < PARALLEL_THRESHOLD) {
+            fileScanner = new Scanner(CharBuffer.wrap(source));
+            tokens = null;
+        } else {
+            fileScanner = null;
+            tokens = ParallelLexer.tokenize(source, ParallelLexer.CHUNK_SIZE);
+            nextToken = 0;
+        }
+    }
+    
+    private static List<Token> keywordTable() {
+        ArrayList<Token> table = new ArrayList<>();
         table.add(new Token(PROGRAM, "program"));
         table.add(new Token(ENDPROGRAM, "endprogram"));
         table.add(new Token(DEF, "def"));
@@ -91,7 +181,19 @@ public class Lexer {
         table.add(new Token(CALLF, "callf"));
         table.add(new Token(REPEAT, "repeat"));
         table.add(new Token(UNTIL, "until"));
+        table.add(new Token(AND, "and"));
+        table.add(new Token(OR, "or"));
+        table.add(new Token(NOT, "not"));
         table.add(new Token(EOF, "EOF"));
+        return Collections.unmodifiableList(table);
+    }
+    
+    private static Map<String, Token> keywordMap() {
+        Map<String, Token> map = new HashMap<>();
+        for (Token t : table) {
+            map.put(t.text, t);
+        }
+        return Collections.unmodifiableMap(map);
     }
     
     /**
@@ -129,24 +231,131 @@ public class Lexer {
         return text;
     }
     
+    /**
+     * Reads the next chunk of a streamed source, ending at a white space,
+     * and tokenizes it as a chunk of the parallel lexer. After the
+     * last chunk the tokens end with EOF.
+     * @throws CompileError if the source cannot be read
+     */
+    private void readChunk() {
+        List<Token> list = new ArrayList<>();
+        char[] buffer = new char[ParallelLexer.CHUNK_SIZE];
+        StringBuilder sb = new StringBuilder(ParallelLexer.CHUNK_SIZE);
+        boolean end = false;
+        try {
+            // chunks of blank lines have no tokens, the next one is read
+            while (list.isEmpty() && !end) {
+                sb.setLength(0);
+                int n = 0;
+                while (n < buffer.length && !end) {
+                    int read = reader.read(buffer, n, buffer.length - n);
+                    if (read < 0) {
+                        end = true;
+                    } else {
+                        n += read;
+                    }
+                }
+                sb.append(buffer, 0, n);
+                // the chunk ends at a white space, so no word is split and
+                // a long line is not read at once, but not between the \r
+                // and the \n of a \r\n
+                while (!end && sb.length() > 0) {
+                    char last = sb.charAt(sb.length() - 1);
+                    if (last == '\r') {
+                        reader.mark(1);
+                        int c = reader.read();
+                        if (c == '\n') {
+                            sb.append('\n');
+                        } else if (c < 0) {
+                            end = true;
+                        } else {
+                            reader.reset();
+                        }
+                        break;
+                    }
+                    if (Chunk.isLineSeparator(last)
+                            || Character.isWhitespace(last)) {
+                        break;
+                    }
+                    int c = reader.read();
+                    if (c < 0) {
+                        end = true;
+                    } else {
+                        sb.append((char) c);
+                    }
+                }
+                Chunk chunk = new Chunk(sb, 0, sb.length());
+                chunk.compute();
+                for (Token token : chunk.tokens) {
+                    token.line += chunkLines;
+                    list.add(token);
+                }
+                chunkLines += chunk.lines;
+                // a line that goes on in the next chunk is counted when
+                // it ends
+                if (sb.length() > 0) {
+                    partialLine = !Chunk.isLineSeparator(
+                            sb.charAt(sb.length() - 1));
+                    if (partialLine) {
+                        chunkLines--;
+                    }
+                }
+            }
+            if (end) {
+                list.add(new Token(EOF, null,
+                        chunkLines + (partialLine ? 1 : 0)));
+                reader.close();
+                reader = null;
+            }
+        } catch (IOException e) {
+            throw new CompileError("Cannot read the source: "
+                    + e.getMessage());
+        }
+        tokens = list.toArray(new Token[0]);
+        nextToken = 0;
+    }
+    
     /**
      * Returns the next token (as code)
      * @return next token: code and text (if constant or variable)
      */
     public Token nextToken() {
+        if (tokens != null) {
+            Token token = tokens[nextToken];
+            // the last token is EOF, it is returned again at the end
+            if (nextToken < tokens.length - 1) {
+                nextToken++;
+            } else if (reader != null) {
+                // last token of a chunk of a streamed source
+                readChunk();
+            }
+            lineNumber = token.line;
+            return token;
+        }
         String text = nextText();
+        return classify(text, lineNumber);
+    }
+    
+    /**
+     * Builds the token of a text
+     * @param text text of the token
+     * @param line line of the source
+     * @return token: code and text (if constant or variable)
+     */
+    static Token classify(String text, int line) {
         // Check if text is a valid keyword
-        for(Token t: table) {
-            if(t.text.equals(text)) {
-                return new Token(t.code, null);
-            }
+        Token keyword = keywords.get(text);
+        if (keyword != null) {
+            return new Token(keyword.code, null, line);
         }
         // Check if text is a valid variable name
-        if(validVariableName(text)) return new Token(VARIABLE, text);
+        if(validVariableName(text)) return new Token(VARIABLE, text, line);
+        // Check if text is a function of another module (Module.name)
+        if(validQualifiedName(text)) return new Token(VARIABLE, text, line);
         // Check if text is a valid integer constant
-        if(validIntConstant(text)) return new Token(CONSTANT, text);
+        if(validIntConstant(text)) return new Token(CONSTANT, text, line);
         // If none of the above, return invalid token
-        return new Token(INVALIDTOKEN, "");
+        return new Token(INVALIDTOKEN, "", line);
     }
     
     /**
@@ -155,20 +364,33 @@ public class Lexer {
      * @param text text to be checked
      * @return true if text is a valid variable name, false otherwise
      */
-    private boolean validVariableName(String text) {
+    private static boolean validVariableName(String text) {
         for(int i = 0; i < text.length(); i++) {
             if(!Character.isLetter(text.charAt(i))) return false;
         }
         return true;
     }
     
+    /**
+     * Returns true if the parameter is a qualified function name:
+     * two valid names separated by a dot (Module.function)
+     * @param text text to be checked
+     * @return true if text is a qualified name, false otherwise
+     */
+    private static boolean validQualifiedName(String text) {
+        int dot = text.indexOf('.');
+        return dot > 0 && dot < text.length() - 1
+                && validVariableName(text.substring(0, dot))
+                && validVariableName(text.substring(dot + 1));
+    }
+    
     /**
      * Returns true if the parameter is a valid integer constant
      * (all characters are digits>)
      * @param text text to be cheked
      * @return true if text is a valid integer constant, false otherwise
      */
-    private boolean validIntConstant(String text) {
+    private static boolean validIntConstant(String text) {
         for(int i = 0; i < text.length(); i++) {
             if(!Character.isDigit(text.charAt(i))) return false;
         }
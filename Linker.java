@@ -0,0 +1,319 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Separate compilation of modules.
+ *
+ * Each module (a source file) is compiled into an object file (.vmo):
+ * the VM code of its functions preceded by a header with the symbols it
+ * exports and imports, the number of static variables it uses and a hash
+ * of the source and the options. The linker compiles again only the
+ * modules whose hash changed, checks that every call can be resolved,
+ * moves the static variables of each module to their own range, and
+ * writes a single .vm file with the runtime functions added only once.
+ *
+ * Header of an object file:
+ * // module name
+ * // source hash
+ * // statics n
+ * // export Module.function
+ * // import Module.function
+ */
+public class Linker {
+
+    public static final String OBJECT_EXTENSION = ".vmo";
+    // Static variables of the Hack platform: RAM 16 to 255
+    public static final int MAX_STATICS = 240;
+    // Classes of the OS of the Hack platform
+    public static final List<String> OS_CLASSES = Arrays.asList("Math",
+            "String", "Array", "Output", "Screen", "Keyboard", "Memory", "Sys");
+
+    Options options;
+
+    public Linker(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Compiles the modules that changed and links all of them into the
+     * program given in the options. Errors end the program.
+     */
+    public void build() {
+        if (options.fileNames.isEmpty()) {
+            error("No modules to link");
+        }
+        List<ObjectFile> objects = new ArrayList<>();
+        for (String module : options.fileNames) {
+            if (upToDate(module)) {
+                System.out.println("Up to date: " + module);
+            } else {
+                System.out.println("Compiling: " + module);
+                compile(module);
+            }
+            objects.add(read(module));
+        }
+        String code = link(objects);
+        String entry = new File(options.fileNames.get(0)).getName() + ".main";
+        List<String> messages = new ArrayList<>();
+        try {
+            StackAnalyzer.check(code, entry, options, messages);
+        } catch (CompileError e) {
+            error(e.getMessage());
+        }
+        for (String message : messages) {
+            System.out.print(message);
+        }
+        try {
+            Files.write(Paths.get(options.link + ".vm"), code.getBytes());
+        } catch (IOException e) {
+            error("Cannot write to file: " + options.link + ".vm");
+        }
+        System.out.println("Linked " + objects.size() + " modules into "
+                + options.link + ".vm");
+    }
+
+    /**
+     * Links the object files
+     * @param objects object files
+     * @return VM code of the program
+     */
+    public String link(List<ObjectFile> objects) {
+        Map<String, String> exports = new HashMap<>();
+        for (ObjectFile object : objects) {
+            for (String name : object.exports) {
+                String other = exports.put(name, object.name);
+                if (other != null) {
+                    error("Function " + name + " defined in " + other
+                            + " and " + object.name);
+                }
+            }
+        }
+        boolean runtime = false;
+        for (ObjectFile object : objects) {
+            for (String name : object.imports) {
+                if (name.equals(CodeGenerator.MULT_FUNCTION)
+                        && !exports.containsKey(name)) {
+                    runtime = true;
+                } else if (!exports.containsKey(name) && !isOS(name)) {
+                    error("Undefined function " + name + " called in "
+                            + object.name);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        int base = 0;
+        for (ObjectFile object : objects) {
+            sb.append(relocate(object.code, base));
+            base += object.statics;
+        }
+        if (base > MAX_STATICS) {
+            error("Too many static variables: " + base);
+        }
+        if (runtime) {
+            sb.append(CodeGenerator.MULT_CODE).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Moves the static variables of a module after the ones of the
+     * previous modules
+     * @param code VM code of the module
+     * @param base first static variable of the module
+     * @return VM code with the new offsets
+     */
+    private String relocate(String code, int base) {
+        List<VMFunction> functions = VMCode.parse(code);
+        for (VMFunction f : functions) {
+            for (String[] instruction : f.body) {
+                if ((instruction[0].equals("push")
+                        || instruction[0].equals("pop"))
+                        && instruction[1].equals("static")) {
+                    instruction[2] = "" + (Integer.parseInt(instruction[2])
+                            + base);
+                }
+            }
+        }
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Checks if a function is one of the OS
+     */
+    static boolean isOS(String name) {
+        int dot = name.indexOf('.');
+        return dot > 0 && OS_CLASSES.contains(name.substring(0, dot));
+    }
+
+    /**
+     * Checks if the object file of a module was compiled from the current
+     * source with the current options
+     * @param module name of the module
+     * @return true if it does not need to be compiled again
+     */
+    private boolean upToDate(String module) {
+        File object = new File(module + OBJECT_EXTENSION);
+        if (!object.exists()) {
+            return false;
+        }
+        String source;
+        try {
+            // the same charset as the Lexer
+            source = new String(Files.readAllBytes(
+                    Paths.get(module + ".txt")));
+        } catch (IOException e) {
+            return false;
+        }
+        return read(module).source.equals(sourceHash(source, options));
+    }
+
+    private void compile(String module) {
+        // a copy, the options of the linker stay as they are
+        Options moduleOptions = options.copy();
+        moduleOptions.module = true;
+        new Parser(module, moduleOptions).program();
+        if (!new File(module + OBJECT_EXTENSION).exists()) {
+            error("Cannot compile module " + module);
+        }
+    }
+
+    /**
+     * Reads an object file
+     * @param module name of the module
+     * @return object file
+     */
+    public ObjectFile read(String module) {
+        List<String> lines = null;
+        try {
+            lines = Files.readAllLines(Paths.get(module + OBJECT_EXTENSION));
+        } catch (IOException e) {
+            error("Cannot read object file: " + module + OBJECT_EXTENSION);
+        }
+        ObjectFile object = new ObjectFile();
+        StringBuilder code = new StringBuilder();
+        for (String line : lines) {
+            String[] words = line.trim().split("\\s+");
+            if (!words[0].equals("//") || words.length < 3) {
+                code.append(line).append("\n");
+                continue;
+            }
+            switch (words[1]) {
+                case "module":
+                    object.name = words[2];
+                    break;
+                case "source":
+                    object.source = words[2];
+                    break;
+                case "statics":
+                    object.statics = Integer.parseInt(words[2]);
+                    break;
+                case "export":
+                    object.exports.add(words[2]);
+                    break;
+                case "import":
+                    object.imports.add(words[2]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        object.code = code.toString();
+        return object;
+    }
+
+    /**
+     * Builds the header of the object file of a module
+     * @param fileName name of the module
+     * @param code VM code of the module
+     * @param source source compiled
+     * @param options options used to compile it
+     * @return header
+     */
+    public static String objectHeader(String fileName, String code,
+            CharSequence source, Options options) {
+        TreeSet<String> exports = new TreeSet<>();
+        TreeSet<String> calls = new TreeSet<>();
+        int statics = 0;
+        for (VMFunction f : VMCode.parse(code)) {
+            exports.add(f.name);
+            for (String[] instruction : f.body) {
+                if (instruction[0].equals("call")) {
+                    calls.add(instruction[1]);
+                } else if (instruction.length > 2
+                        && instruction[1].equals("static")) {
+                    statics = Math.max(statics,
+                            Integer.parseInt(instruction[2]) + 1);
+                }
+            }
+        }
+        // the runtime is not part of the module
+        exports.remove(CodeGenerator.MULT_FUNCTION);
+        calls.removeAll(exports);
+        StringBuilder sb = new StringBuilder();
+        sb.append("// module " + new File(fileName).getName() + "\n");
+        sb.append("// source " + sourceHash(source, options) + "\n");
+        sb.append("// statics " + statics + "\n");
+        for (String name : exports) {
+            sb.append("// export " + name + "\n");
+        }
+        for (String name : calls) {
+            sb.append("// import " + name + "\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Hash of the source of a module and of the options that change the
+     * generated code
+     * @param source source of the module
+     * @param options options of the compiler
+     * @return hash as hexadecimal text
+     */
+    public static String sourceHash(CharSequence source, Options options) {
+        CRC32 crc = new CRC32();
+        crc.update(source.toString().getBytes(StandardCharsets.UTF_8));
+        crc.update(options.signature().getBytes());
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Removes a function from the VM code
+     * @param code VM code
+     * @param name name of the function
+     * @return VM code without the function
+     */
+    public static String removeFunction(String code, String name) {
+        List<VMFunction> functions = VMCode.parse(code);
+        functions.removeIf(f -> f.name.equals(name));
+        return VMCode.toText(functions);
+    }
+
+    private void error(String message) {
+        System.out.println("Link Error");
+        System.out.println(message);
+        System.exit(0);
+    }
+}
+
+/**
+ * Contents of an object file
+ */
+class ObjectFile {
+
+    String name;
+    String source = "";
+    int statics;
+    List<String> exports = new ArrayList<>();
+    List<String> imports = new ArrayList<>();
+    String code;
+}
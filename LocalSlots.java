@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reuse of the slots of the local variables.
+ *
+ * The header of a function makes every call push a zero for each local,
+ * so locals that are only used in a part of the function make all the
+ * calls more expensive. A liveness analysis finds where the value of each
+ * local can still be read; two locals interfere when one of them is
+ * assigned while the other one is live. Locals that do not interfere
+ * share a slot (greedy colouring of the interference graph), the offsets
+ * of push and pop local are rewritten and the header gets the new number
+ * of locals.
+ *
+ * A local read before being assigned uses the zero of the header, so the
+ * locals live at the start of the function interfere with each other.
+ */
+public class LocalSlots {
+
+    // number of locals before and after, for each function that changed
+    Map<String, int[]> saved;
+
+    public LocalSlots() {
+        saved = new LinkedHashMap<>();
+    }
+
+    /**
+     * Optimizes the VM code
+     * @param code VM code
+     * @return optimized VM code
+     */
+    public String optimize(String code) {
+        List<VMFunction> functions = VMCode.parse(code);
+        for (VMFunction f : functions) {
+            int before = f.numLocals;
+            assignSlots(f);
+            if (f.numLocals < before) {
+                saved.put(f.name, new int[] {before, f.numLocals});
+            }
+        }
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Number of local slots removed by the pass
+     * @return total number of slots removed
+     */
+    public int total() {
+        int total = 0;
+        for (int[] n : saved.values()) {
+            total += n[0] - n[1];
+        }
+        return total;
+    }
+
+    /**
+     * Report of the frame size of each function that changed
+     * @return report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, int[]> e : saved.entrySet()) {
+            sb.append("Slots: " + e.getKey() + ": " + e.getValue()[0]
+                    + " -> " + e.getValue()[1] + " locals\n");
+        }
+        sb.append("Slots: " + total() + " local slots removed\n");
+        return sb.toString();
+    }
+
+    /**
+     * Colours the interference graph of the locals of a function and
+     * rewrites its code with the new slots
+     * @param f function
+     */
+    private void assignSlots(VMFunction f) {
+        int n = f.numLocals;
+        if (n == 0) {
+            return;
+        }
+        BitSet[] liveOut = liveness(f.body, n);
+        BitSet[] interference = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            interference[i] = new BitSet(n);
+        }
+        BitSet used = new BitSet(n);
+        for (int i = 0; i < f.body.size(); i++) {
+            int local = localOffset(f.body.get(i));
+            if (local < 0) {
+                continue;
+            }
+            used.set(local);
+            if (f.body.get(i)[0].equals("pop")) {
+                BitSet live = liveOut[i];
+                for (int j = live.nextSetBit(0); j >= 0;
+                        j = live.nextSetBit(j + 1)) {
+                    if (j != local) {
+                        interference[local].set(j);
+                        interference[j].set(local);
+                    }
+                }
+            }
+        }
+        BitSet entry = liveIn(f.body, liveOut, 0, n);
+        for (int i = entry.nextSetBit(0); i >= 0; i = entry.nextSetBit(i + 1)) {
+            interference[i].or(entry);
+            interference[i].clear(i);
+        }
+        // greedy colouring in the order of the declaration
+        int[] slot = new int[n];
+        int slots = 0;
+        for (int i = 0; i < n; i++) {
+            slot[i] = -1;
+            if (!used.get(i)) {
+                continue;
+            }
+            BitSet taken = new BitSet();
+            for (int j = interference[i].nextSetBit(0); j >= 0 && j < i;
+                    j = interference[i].nextSetBit(j + 1)) {
+                if (slot[j] >= 0) {
+                    taken.set(slot[j]);
+                }
+            }
+            slot[i] = taken.nextClearBit(0);
+            slots = Math.max(slots, slot[i] + 1);
+        }
+        for (String[] instruction : f.body) {
+            int local = localOffset(instruction);
+            if (local >= 0) {
+                instruction[2] = "" + slot[local];
+            }
+        }
+        f.numLocals = slots;
+    }
+
+    /**
+     * Locals that can be read before being assigned, so they use the zero
+     * of the header
+     * @param f function
+     * @return locals live at the start of the function
+     */
+    public BitSet liveAtStart(VMFunction f) {
+        if (f.numLocals == 0) {
+            return new BitSet();
+        }
+        return liveIn(f.body, liveness(f.body, f.numLocals), 0, f.numLocals);
+    }
+
+    /**
+     * Computes the locals live after each instruction, iterating backwards
+     * over the control flow graph until nothing changes
+     * @param body instructions of the function
+     * @param n number of locals
+     * @return locals live after each instruction
+     */
+    private BitSet[] liveness(List<String[]> body, int n) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < body.size(); i++) {
+            if (body.get(i)[0].equals("label")) {
+                labels.put(body.get(i)[1], i);
+            }
+        }
+        BitSet[] liveOut = new BitSet[body.size()];
+        for (int i = 0; i < body.size(); i++) {
+            liveOut[i] = new BitSet(n);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = body.size() - 1; i >= 0; i--) {
+                BitSet out = new BitSet(n);
+                for (int next : successors(body, i, labels)) {
+                    out.or(liveIn(body, liveOut, next, n));
+                }
+                if (!out.equals(liveOut[i])) {
+                    liveOut[i] = out;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    /**
+     * Locals live before an instruction
+     */
+    private BitSet liveIn(List<String[]> body, BitSet[] liveOut, int i,
+            int n) {
+        if (i >= body.size()) {
+            return new BitSet(n);
+        }
+        BitSet in = (BitSet) liveOut[i].clone();
+        int local = localOffset(body.get(i));
+        if (local >= 0) {
+            if (body.get(i)[0].equals("pop")) {
+                in.clear(local);
+            } else {
+                in.set(local);
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Instructions that can be executed after an instruction
+     */
+    private List<Integer> successors(List<String[]> body, int i,
+            Map<String, Integer> labels) {
+        List<Integer> result = new ArrayList<>();
+        String[] instruction = body.get(i);
+        switch (instruction[0]) {
+            case "return":
+                break;
+            case "goto":
+                result.add(labels.getOrDefault(instruction[1], body.size()));
+                break;
+            case "if-goto":
+                result.add(labels.getOrDefault(instruction[1], body.size()));
+                result.add(i + 1);
+                break;
+            default:
+                result.add(i + 1);
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * Offset of the local used by an instruction
+     * @param instruction instruction split in words
+     * @return offset, or -1 if it is not a push or pop of a local
+     */
+    private static int localOffset(String[] instruction) {
+        if ((instruction[0].equals("push") || instruction[0].equals("pop"))
+                && instruction[1].equals("local")) {
+            return Integer.parseInt(instruction[2]);
+        }
+        return -1;
+    }
+
+    /**
+     * Main program to test. Compares the output of random programs with
+     * and without the optimisation, using the VM interpreter.
+     * @param args number of random programs (default 1000)
+     */
+    public static void main(String [] args) {
+        int programs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Random random = new Random(34);
+        int failures = 0;
+        int total = 0;
+        long stepsBefore = 0;
+        long stepsAfter = 0;
+        for (int p = 0; p < programs; p++) {
+            String code = randomProgram(random);
+            LocalSlots slots = new LocalSlots();
+            String optimized = slots.optimize(code);
+            total += slots.total();
+            VMInterpreter before = new VMInterpreter(code);
+            VMInterpreter after = new VMInterpreter(optimized);
+            before.run("Main.main");
+            after.run("Main.main");
+            stepsBefore += before.steps;
+            stepsAfter += after.steps;
+            if (!before.output.equals(after.output)) {
+                failures++;
+                System.out.println("Different output for:\n" + code);
+            }
+        }
+        System.out.println(programs + " programs, " + failures + " failures, "
+                + total + " slots removed, " + stepsBefore + " -> "
+                + stepsAfter + " steps");
+    }
+
+    /**
+     * Generates a program made of blocks. Each block uses two locals of
+     * its own in a loop, and sometimes reads a local of another block,
+     * which can be unassigned (zero) or assigned by an earlier block.
+     */
+    private static String randomProgram(Random random) {
+        int blocks = 2 + random.nextInt(4);
+        StringBuilder sb = new StringBuilder("function Main.main "
+                + 2 * blocks + "\n");
+        for (int b = 0; b < blocks; b++) {
+            int counter = 2 * b;
+            int value = 2 * b + 1;
+            sb.append("\tpush constant " + random.nextInt(4) + "\n");
+            sb.append("\tpop local " + counter + "\n");
+            if (random.nextBoolean()) {
+                sb.append("\tpush constant " + random.nextInt(10) + "\n");
+                sb.append("\tpop local " + value + "\n");
+            }
+            sb.append("label loop" + b + "\n");
+            sb.append("\tpush local " + value + "\n");
+            sb.append("\tpush local " + random.nextInt(2 * blocks) + "\n");
+            sb.append("\tadd\n");
+            sb.append("\tpop local " + value + "\n");
+            sb.append("\tpush local " + counter + "\n");
+            sb.append("\tpush constant 1\n\tadd\n");
+            sb.append("\tpop local " + counter + "\n");
+            sb.append("\tpush local " + counter + "\n");
+            sb.append("\tpush constant 4\n\tlt\n");
+            sb.append("\tif-goto loop" + b + "\n");
+            sb.append("\tpush local " + value + "\n");
+            sb.append("\tcall Output.printInt 1\n");
+            sb.append("\tpop temp 0\n");
+        }
+        sb.append("\tpush constant 0\n");
+        sb.append("\treturn\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,412 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Loop-invariant code motion.
+ *
+ * The loops are found in the generated code as a label and a later jump
+ * (goto or if-goto) back to it, which is what the parser emits for
+ * repeat and while. An expression inside the loop whose variables are not
+ * assigned in the loop is computed once before the loop label (the
+ * pre-header) into a new local variable, and the loop pushes that
+ * variable instead.
+ *
+ * Only pure expressions are moved: pushes, arithmetic and logic
+ * operations and the multiplication of the runtime. If the loop calls a
+ * function that is not of the OS (of the program or of another module),
+ * static variables are not considered invariant.
+ */
+public class LoopInvariants {
+
+    // Maximum number of expressions moved in a function
+    public static final int MAX_MOVES = 200;
+
+    // expressions moved out of loops in each function
+    Map<String, Integer> moved;
+    // functions that are not optimized
+    Set<String> skip;
+
+    public LoopInvariants() {
+        moved = new LinkedHashMap<>();
+        skip = new HashSet<>();
+    }
+
+    /**
+     * Optimizes the VM code
+     * @param code VM code
+     * @return optimized VM code
+     */
+    public String optimize(String code) {
+        List<VMFunction> functions = VMCode.parse(code);
+        for (VMFunction f : functions) {
+            if (skip.contains(f.name)) {
+                continue;
+            }
+            int count = 0;
+            while (count < MAX_MOVES && hoistOne(f)) {
+                count++;
+            }
+            if (count > 0) {
+                moved.put(f.name, count);
+            }
+        }
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Number of expressions moved by the pass
+     * @return total number of expressions moved
+     */
+    public int total() {
+        int total = 0;
+        for (int n : moved.values()) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Report of the expressions moved in each function
+     * @return report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> e : moved.entrySet()) {
+            sb.append("LICM: " + e.getKey() + ": " + e.getValue()
+                    + " expressions moved out of loops\n");
+        }
+        sb.append("LICM: " + total() + " expressions moved out of loops\n");
+        return sb.toString();
+    }
+
+    /**
+     * Moves one invariant expression out of a loop of the function.
+     * Outer loops are tried first, so an expression goes as far out as
+     * it can.
+     * @param f function
+     * @return true if an expression was moved
+     */
+    private boolean hoistOne(VMFunction f) {
+        for (int[] loop : findLoops(f.body)) {
+            Expression e = findInvariant(f.body, loop[0], loop[1]);
+            if (e != null) {
+                hoist(f, loop[0], loop[1], e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the loops of a function: a label and the last jump back to it.
+     * Loops whose label is the target of a jump from outside are skipped,
+     * as the pre-header would not be executed on that path.
+     * @param body instructions of the function
+     * @return position of the label and of the jump, sorted by label
+     */
+    private List<int[]> findLoops(List<String[]> body) {
+        List<int[]> loops = new ArrayList<>();
+        for (int i = 0; i < body.size(); i++) {
+            if (!body.get(i)[0].equals("label") || i == 0
+                    || isJumpOrReturn(body.get(i - 1))) {
+                continue;
+            }
+            String label = body.get(i)[1];
+            int end = -1;
+            boolean outside = false;
+            for (int j = 0; j < body.size(); j++) {
+                String[] instruction = body.get(j);
+                if ((instruction[0].equals("goto")
+                        || instruction[0].equals("if-goto"))
+                        && instruction[1].equals(label)) {
+                    if (j > i) {
+                        end = j;
+                    } else {
+                        outside = true;
+                    }
+                }
+            }
+            if (end > 0 && !outside) {
+                loops.add(new int[] {i, end});
+            }
+        }
+        return loops;
+    }
+
+    private boolean isJumpOrReturn(String[] instruction) {
+        return instruction[0].equals("goto")
+                || instruction[0].equals("return");
+    }
+
+    /**
+     * Finds the biggest invariant expression of a loop
+     * @param body instructions of the function
+     * @param start position of the loop label
+     * @param end position of the jump back to the label
+     * @return expression, or null if there is none
+     */
+    private Expression findInvariant(List<String[]> body, int start, int end) {
+        // variables assigned inside the loop
+        Set<String> assigned = new HashSet<>();
+        boolean calls = false;
+        for (int i = start; i <= end; i++) {
+            String[] instruction = body.get(i);
+            if (instruction[0].equals("pop")) {
+                assigned.add("[" + instruction[1] + " " + instruction[2] + "]");
+            } else if (instruction[0].equals("call")
+                    && !instruction[1].equals(CodeGenerator.MULT_FUNCTION)
+                    && !Linker.isOS(instruction[1])) {
+                // a function of another module can call back a function
+                // of this one that writes a static
+                calls = true;
+            }
+        }
+        Expression best = null;
+        List<Expression> stack = new ArrayList<>();
+        for (int i = start; i <= end; i++) {
+            String[] instruction = body.get(i);
+            Expression e = null;
+            switch (instruction[0]) {
+                case "push":
+                    String variable = "[" + instruction[1] + " "
+                            + instruction[2] + "]";
+                    boolean invariant = !assigned.contains(variable)
+                            && !instruction[1].equals("temp")
+                            && !(calls && instruction[1].equals("static"));
+                    e = new Expression(invariant ? variable : null,
+                            i, i + 1, 0);
+                    break;
+                case "add":
+                case "sub":
+                case "eq":
+                case "gt":
+                case "lt":
+                case "and":
+                case "or":
+                    e = Expression.combine(pop(stack), pop(stack),
+                            instruction[0], i);
+                    break;
+                case "neg":
+                case "not":
+                    e = Expression.unary(pop(stack), instruction[0], i);
+                    break;
+                default:
+                    if (instruction[0].equals("call")
+                            && instruction[1].equals(CodeGenerator.MULT_FUNCTION)) {
+                        e = Expression.combine(pop(stack), pop(stack),
+                                "mult", i);
+                    } else {
+                        // the values in the stack are not used by
+                        // expressions any more
+                        stack.clear();
+                        if (instruction[0].equals("call")) {
+                            // the result of the call, it is not invariant
+                            e = new Expression(null, i, i + 1, 0);
+                        }
+                    }
+                    break;
+            }
+            if (e != null) {
+                stack.add(e);
+                if (e.key != null && e.operations > 0
+                        && (best == null || e.length() > best.length())) {
+                    best = e;
+                }
+            }
+        }
+        return best;
+    }
+
+    private Expression pop(List<Expression> stack) {
+        if (stack.isEmpty()) {
+            return null;
+        }
+        return stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * Moves an expression to the pre-header of a loop. All the
+     * occurrences of the expression in the loop are replaced.
+     * @param f function
+     * @param start position of the loop label
+     * @param end position of the jump back to the label
+     * @param e expression to move
+     */
+    private void hoist(VMFunction f, int start, int end, Expression e) {
+        int local = f.numLocals;
+        f.numLocals++;
+        List<String[]> code = new ArrayList<>(f.body.subList(e.start, e.end));
+        List<String[]> result = new ArrayList<>(f.body.subList(0, start));
+        result.addAll(code);
+        result.add(new String[] {"pop", "local", "" + local});
+        for (int i = start; i < f.body.size(); i++) {
+            if (i <= end && i + code.size() <= end + 1
+                    && sameCode(f.body, i, code)) {
+                result.add(new String[] {"push", "local", "" + local});
+                i += code.size() - 1;
+            } else {
+                result.add(f.body.get(i));
+            }
+        }
+        f.body = result;
+    }
+
+    /**
+     * Checks if the instructions at a position are the given ones
+     */
+    private boolean sameCode(List<String[]> body, int position,
+            List<String[]> code) {
+        for (int i = 0; i < code.size(); i++) {
+            if (!String.join(" ", body.get(position + i))
+                    .equals(String.join(" ", code.get(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Main program to test. Compares the output of random programs with
+     * loops, with and without the optimisation, using the VM interpreter.
+     * @param args number of random programs (default 1000)
+     */
+    public static void main(String [] args) {
+        int programs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Random random = new Random(28);
+        int failures = 0;
+        int total = 0;
+        long stepsBefore = 0;
+        long stepsAfter = 0;
+        for (int p = 0; p < programs; p++) {
+            String code = randomProgram(random);
+            LoopInvariants licm = new LoopInvariants();
+            String optimized = licm.optimize(code);
+            total += licm.total();
+            VMInterpreter before = new VMInterpreter(code);
+            VMInterpreter after = new VMInterpreter(optimized);
+            before.run("Main.main");
+            after.run("Main.main");
+            stepsBefore += before.steps;
+            stepsAfter += after.steps;
+            if (!before.output.equals(after.output)) {
+                failures++;
+                System.out.println("Different output for:\n" + code);
+            }
+        }
+        System.out.println(programs + " programs, " + failures + " failures, "
+                + total + " expressions moved, " + stepsBefore + " -> "
+                + stepsAfter + " steps");
+
+        // a module whose loop calls another module, which calls back a
+        // function that writes a static: the static is not invariant
+        String module = "function Main.main 1\n"
+                + "\tpush constant 0\n\tpop local 0\n"
+                + "label loop\n"
+                + "\tpush static 0\n\tpush constant 2\n\tadd\n"
+                + "\tcall Output.printInt 1\n\tpop temp 0\n"
+                + "\tcall Util.f 0\n\tpop temp 0\n"
+                + "\tpush local 0\n\tpush constant 1\n\tadd\n"
+                + "\tpop local 0\n"
+                + "\tpush local 0\n\tpush constant 3\n\tlt\n"
+                + "\tif-goto loop\n"
+                + "\treturn\n"
+                + "function Main.set 0\n"
+                + "\tpush static 0\n\tpush constant 5\n\tadd\n"
+                + "\tpop static 0\n"
+                + "\tpush constant 0\n\treturn\n";
+        String util = "function Util.f 0\n"
+                + "\tcall Main.set 0\n\treturn\n";
+        String optimized = new LoopInvariants().optimize(module);
+        VMInterpreter before = new VMInterpreter(module + util);
+        VMInterpreter after = new VMInterpreter(optimized + util);
+        before.run("Main.main");
+        after.run("Main.main");
+        System.out.println("Modules: " + before.output + " -> "
+                + after.output + " "
+                + (before.output.equals(after.output) ? "ok" : "FAIL"));
+
+        // callf f ( i ) + ( 4 + 5 ) in a loop: the addition uses the result
+        // of the call, only 4 + 5 is invariant
+        String code = "function Main.main 1\n"
+                + "\tpush constant 0\n\tpop local 0\n"
+                + "label loop\n"
+                + "\tpush local 0\n\tcall Main.f 1\n"
+                + "\tpush constant 4\n\tpush constant 5\n\tadd\n"
+                + "\tadd\n"
+                + "\tcall Output.printInt 1\n\tpop temp 0\n"
+                + "\tpush local 0\n\tpush constant 1\n\tadd\n"
+                + "\tpop local 0\n"
+                + "\tpush local 0\n\tpush constant 3\n\tlt\n"
+                + "\tif-goto loop\n"
+                + "\treturn\n"
+                + "function Main.f 0\n"
+                + "\tpush argument 0\n\treturn\n";
+        before = new VMInterpreter(code);
+        after = new VMInterpreter(new LoopInvariants().optimize(code));
+        before.run("Main.main");
+        after.run("Main.main");
+        System.out.println("Call result: " + before.output + " -> "
+                + after.output + " "
+                + (before.output.equals(after.output) ? "ok" : "FAIL"));
+    }
+
+    /**
+     * Generates a program with two nested loops (repeat and while style)
+     * that assign random expressions to local variables. Locals 0 and 1
+     * are the loop counters, 2 and 3 are assigned in the loops and 4 and
+     * 5 are only read.
+     */
+    private static String randomProgram(Random random) {
+        StringBuilder sb = new StringBuilder("function Main.main 6\n");
+        for (int i = 2; i < 6; i++) {
+            sb.append("\tpush constant " + random.nextInt(20) + "\n");
+            sb.append("\tpop local " + i + "\n");
+        }
+        sb.append("label outer\n");
+        sb.append(randomAssignment(random));
+        // inner while loop
+        sb.append("\tpush constant 0\n\tpop local 1\n");
+        sb.append("label inner\n");
+        sb.append("\tpush local 1\n\tpush constant 3\n\tlt\n\tnot\n");
+        sb.append("\tif-goto innerEnd\n");
+        sb.append(randomAssignment(random));
+        sb.append("\tpush local 1\n\tpush constant 1\n\tadd\n\tpop local 1\n");
+        sb.append("\tgoto inner\n");
+        sb.append("label innerEnd\n");
+        sb.append(randomAssignment(random));
+        // outer repeat loop
+        sb.append("\tpush local 0\n\tpush constant 1\n\tadd\n\tpop local 0\n");
+        sb.append("\tpush local 0\n\tpush constant 4\n\tlt\n");
+        sb.append("\tif-goto outer\n");
+        for (int i = 2; i < 4; i++) {
+            sb.append("\tpush local " + i + "\n");
+            sb.append("\tcall Output.printInt 1\n");
+            sb.append("\tpop temp 0\n");
+        }
+        sb.append("\treturn\n");
+        sb.append(CodeGenerator.MULT_CODE);
+        return sb.toString();
+    }
+
+    private static String randomAssignment(Random random) {
+        return randomExpression(random, 3)
+                + "\tpop local " + (2 + random.nextInt(2)) + "\n";
+    }
+
+    private static String randomExpression(Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            return random.nextBoolean()
+                    ? "\tpush local " + random.nextInt(6) + "\n"
+                    : "\tpush constant " + random.nextInt(10) + "\n";
+        }
+        String[] operations = {"add", "sub", "call Main.mult 2", "lt"};
+        return randomExpression(random, depth - 1)
+                + randomExpression(random, depth - 1) + "\t"
+                + operations[random.nextInt(operations.length)] + "\n";
+    }
+}
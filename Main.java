@@ -3,7 +3,13 @@
  */
 public class Main {
     public static void main(String [] args) {
-        Parser parser = new Parser("Main");
+        Options options = Options.fromArgs(args);
+        if (options.link != null) {
+            // separate compilation: build the modules and link them
+            new Linker(options).build();
+            return;
+        }
+        Parser parser = new Parser(options.fileName, options);
         // Call the method associated with the starting symbol of the grammar
         parser.program();
     }
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Options of the compiler, usually taken from the command line
+ */
+public class Options implements Cloneable {
+    // Name of the source file, without the .txt extension
+    String fileName = "Main";
+    // Names of all the source files given (modules to link)
+    List<String> fileNames = new ArrayList<>();
+    // Compile a module into an object file (.vmo) instead of a program
+    boolean module = false;
+    // Name of the program linked from the modules (null: do not link)
+    String link = null;
+    // Print the report of the stack analysis
+    boolean stackReport = false;
+    // Maximum number of words of stack the program may use (-1: no limit)
+    int stackLimit = -1;
+    // Common subexpression elimination
+    boolean cse = false;
+    // Loop-invariant code motion
+    boolean licm = false;
+    // Replace recursive calls in tail position by jumps
+    boolean tailCalls = false;
+    // Evaluate calls to pure functions with constant arguments
+    boolean fold = false;
+    // Maximum number of steps of each evaluation
+    int foldSteps = PureCalls.DEFAULT_STEPS;
+    // Share the slots of locals that are not live at the same time
+    boolean slots = false;
+    // Add counters of calls and loop iterations to the code
+    boolean instrument = false;
+    // Remove unreachable code, shorten the labels and merge equal functions
+    boolean compact = false;
+    // File where the profile of the program is written (null: no profile)
+    String profile = null;
+    // File with the profile used to optimize (null: no profile)
+    String useProfile = null;
+    // Contents of the profile used to optimize, given in memory; used
+    // instead of the file (null: the file is read)
+    String profileText = null;
+    // Write each function as soon as it is compiled, in bounded memory
+    boolean stream = false;
+
+    /**
+     * Builds the options from the arguments of the command line.
+     * Unknown options end the program with an error message.
+     * @param args arguments of the command line
+     * @return options
+     */
+    public static Options fromArgs(String [] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-stackreport":
+                    options.stackReport = true;
+                    break;
+                case "-stacklimit":
+                    options.stackLimit = intArgument(args, ++i);
+                    break;
+                case "-cse":
+                    options.cse = true;
+                    break;
+                case "-licm":
+                    options.licm = true;
+                    break;
+                case "-tailcalls":
+                    options.tailCalls = true;
+                    break;
+                case "-fold":
+                    options.fold = true;
+                    break;
+                case "-foldsteps":
+                    options.foldSteps = intArgument(args, ++i);
+                    break;
+                case "-slots":
+                    options.slots = true;
+                    break;
+                case "-instrument":
+                    options.instrument = true;
+                    break;
+                case "-compact":
+                    options.compact = true;
+                    break;
+                case "-profile":
+                    options.profile = stringArgument(args, ++i);
+                    break;
+                case "-useprofile":
+                    options.useProfile = stringArgument(args, ++i);
+                    break;
+                case "-stream":
+                    options.stream = true;
+                    break;
+                case "-c":
+                    options.module = true;
+                    break;
+                case "-link":
+                    options.link = stringArgument(args, ++i);
+                    break;
+                default:
+                    if (args[i].startsWith("-")) {
+                        usage("Unknown option: " + args[i]);
+                    }
+                    if (options.fileNames.isEmpty()) {
+                        options.fileName = args[i];
+                    }
+                    options.fileNames.add(args[i]);
+                    break;
+            }
+        }
+        if (options.stream && (options.module || options.link != null)) {
+            usage("-stream compiles programs, not modules");
+        }
+        return options;
+    }
+
+    /**
+     * Options that change the generated code. Object files compiled with
+     * different options are compiled again before linking.
+     * @return text describing the options
+     */
+    public String signature() {
+        return "fold=" + fold + "," + foldSteps
+                + " licm=" + licm
+                + " cse=" + cse
+                + " tailcalls=" + tailCalls
+                + " slots=" + slots
+                + " profile=" + useProfile + "," + profileHash()
+                + " compact=" + compact
+                + " instrument=" + instrument;
+    }
+
+    /**
+     * Hash of the contents of the profile used to optimize, so that the
+     * signature changes when the profile is recorded again with the same
+     * name
+     * @return hash as hexadecimal text, "none" if there is no profile
+     */
+    private String profileHash() {
+        CRC32 crc = new CRC32();
+        if (profileText != null) {
+            crc.update(profileText.getBytes());
+        } else if (useProfile != null) {
+            try {
+                crc.update(Files.readAllBytes(Paths.get(useProfile)));
+            } catch (IOException e) {
+                return "none";
+            }
+        } else {
+            return "none";
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Returns true if the code is optimized with a profile, from a file
+     * or given in memory
+     * @return true if there is a profile
+     */
+    public boolean hasProfile() {
+        return useProfile != null || profileText != null;
+    }
+
+    /**
+     * Copy of the options, that can be changed without changing these
+     * @return copy
+     */
+    public Options copy() {
+        try {
+            Options copy = (Options) super.clone();
+            copy.fileNames = new ArrayList<>(fileNames);
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Reads the text value of an option
+     * @param args arguments of the command line
+     * @param i position of the value
+     * @return value
+     */
+    private static String stringArgument(String [] args, int i) {
+        if (i >= args.length) {
+            usage("Expected a name after " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Reads the integer value of an option
+     * @param args arguments of the command line
+     * @param i position of the value
+     * @return value
+     */
+    private static int intArgument(String [] args, int i) {
+        try {
+            return Integer.parseInt(args[i]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            usage("Expected a number after " + args[i - 1]);
+            return -1;
+        }
+    }
+
+    /**
+     * Prints an error and the usage of the compiler, and ends the program
+     * @param message error message
+     */
+    private static void usage(String message) {
+        System.out.println(message);
+        System.out.println("Usage: java Main [options] [fileName]");
+        System.out.println("       java Main [options] -link program module...");
+        System.out.println("  -stackreport     print the stack analysis");
+        System.out.println("  -stacklimit n    fail if the program may use"
+                + " more than n words of stack");
+        System.out.println("  -cse             eliminate common subexpressions");
+        System.out.println("  -licm            move loop invariants out of loops");
+        System.out.println("  -tailcalls       turn recursive tail calls into jumps");
+        System.out.println("  -fold            evaluate calls to pure functions"
+                + " with constant arguments");
+        System.out.println("  -foldsteps n     maximum steps of each evaluation"
+                + " (default " + PureCalls.DEFAULT_STEPS + ")");
+        System.out.println("  -slots           share the slots of locals that"
+                + " are not live at the same time");
+        System.out.println("  -instrument      count calls and loop iterations,"
+                + " printed when main ends");
+        System.out.println("  -compact         shorten labels, remove"
+                + " unreachable code and merge equal functions");
+        System.out.println("  -profile file    run the program and write its"
+                + " profile to file");
+        System.out.println("  -useprofile file optimize with the profile in"
+                + " file");
+        System.out.println("  -stream          write each function when it is"
+                + " compiled (only the optimisations of one function)");
+        System.out.println("  -c               compile a module into an object"
+                + " file (.vmo)");
+        System.out.println("  -link name       compile the modules that changed"
+                + " and link them into name.vm");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Tokenizes big sources in parallel.
+ *
+ * The source is split in chunks that end at the end of a line, and the
+ * chunks are tokenized at the same time on the common fork-join pool.
+ * Each chunk numbers its lines from 1; when the chunks are joined, the
+ * lines of the previous chunks are added, so the tokens have the same
+ * lines as when the source is read line by line. The last token is EOF,
+ * on the last line of the source.
+ *
+ * The lines and the words are separated as the Scanner of the Lexer does:
+ * lines end with \n, \r\n, \r, \u2028, \u2029 or \u0085, and words are
+ * separated by white space.
+ */
+public class ParallelLexer {
+
+    // Characters of each chunk, approximately (a chunk ends with a line)
+    public static final int CHUNK_SIZE = 1 << 18;
+
+    /**
+     * Tokenizes a source
+     * @param source source code
+     * @param chunkSize approximate size of each chunk
+     * @return tokens, the last one is EOF
+     */
+    public static Token[] tokenize(CharSequence source, int chunkSize) {
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < source.length()) {
+            int end = Math.min(start + chunkSize, source.length());
+            // the chunk ends after a \n, so \r\n is not split
+            while (end < source.length() && source.charAt(end - 1) != '\n') {
+                end++;
+            }
+            chunks.add(new Chunk(source, start, end));
+            start = end;
+        }
+        if (chunks.size() == 1) {
+            chunks.get(0).compute();
+        } else {
+            RecursiveTask.invokeAll(chunks);
+        }
+        int count = 1;
+        for (Chunk chunk : chunks) {
+            count += chunk.tokens.size();
+        }
+        Token[] tokens = new Token[count];
+        int lines = 0;
+        int next = 0;
+        for (Chunk chunk : chunks) {
+            for (Token token : chunk.tokens) {
+                token.line += lines;
+                tokens[next++] = token;
+            }
+            lines += chunk.lines;
+        }
+        tokens[next] = new Token(Lexer.EOF, null, lines);
+        return tokens;
+    }
+
+    /**
+     * Main program to test. Compares the tokens of random sources read by
+     * the Lexer line by line and tokenized in parallel with small chunks.
+     * @param args number of random sources (default 200)
+     */
+    public static void main(String [] args) {
+        int sources = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        Random random = new Random(36);
+        int failures = 0;
+        for (int s = 0; s < sources; s++) {
+            String source = randomSource(random);
+            Lexer lexer = new Lexer();
+            lexer.reset(source);
+            List<Token> expected = new ArrayList<>();
+            Token token;
+            do {
+                token = lexer.nextToken();
+                expected.add(token);
+            } while (token.code != Lexer.EOF);
+            Token[] tokens = tokenize(source, 1 + random.nextInt(64));
+            if (!same(expected, tokens)) {
+                failures++;
+                System.out.println("Different tokens for:\n" + source);
+            }
+        }
+        System.out.println(sources + " sources, " + failures + " failures");
+    }
+
+    private static boolean same(List<Token> expected, Token[] tokens) {
+        if (expected.size() != tokens.length) {
+            return false;
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            Token a = expected.get(i);
+            Token b = tokens[i];
+            if (a.code != b.code || a.line != b.line
+                    || !String.valueOf(a.text).equals(String.valueOf(b.text))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates a source with words, blank lines, the different line
+     * separators and white space
+     */
+    private static String randomSource(Random random) {
+        String[] words = {"program", "def", "x", "Util.f", "12", "(", ")",
+            "==", "=", "+", "x1", "enddef"};
+        String[] separators = {" ", "  ", "\t", "\n", "\r\n", "\r", "\n\n",
+            "\u2028", " \n "};
+        StringBuilder sb = new StringBuilder();
+        int n = random.nextInt(60);
+        for (int i = 0; i < n; i++) {
+            sb.append(separators[random.nextInt(separators.length)]);
+            sb.append(words[random.nextInt(words.length)]);
+        }
+        if (random.nextBoolean()) {
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -20,7 +20,7 @@
  * <statment> ::= read variable 
  *      | print variable 
  *      | call variable lparen <argumentList> rparen
- *      | return <variable>
+ *      | return <expr>
  *      | <assignment>
  *      | <while>
  *      | <print>
@@ -32,15 +32,28 @@
  *      | constant
  *      | lparen <expr> rparen
  *      | callf variable lparen <argumentList> paren
+ * (the variable of call and callf can be Module.function, a function
+ * of another module)
  * <while> ::= while <condition> statementList endwhile
  * <print> ::= print lparen <expr> rparen
- * <condition> ::= lparen <expr> <compOp> <expr>  rparen
- * <compOp> ::= EQ | NEQ
+ * <condition> ::= lparen <boolExpr> rparen
+ * <boolExpr> ::= <boolTerm> { or <boolTerm> }
+ * <boolTerm> ::= <boolFactor> { and <boolFactor> }
+ * <boolFactor> ::= not <boolFactor>
+ *      | lparen <boolExpr> rparen
+ *      | <expr> <compOp> <expr>
+ * (a boolFactor in parenthesis can also be the start of the first expr of
+ * a comparison, as in ( a + b ) * c < d)
+ * <compOp> ::= EQ | NEQ | GT | GE | LT | LE
  * <argumentList> ::= variable <argumentList>
  * <variableList> ::= variable <variableList>
  * | epsilon
  */
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class Parser {
 
@@ -51,6 +64,11 @@ public class Parser {
     SymbolTable argumentVariables;
     SymbolTable localVariables;
     String fileName;
+    // name of the class of the generated functions (file name without path)
+    String className;
+    Options options;
+    // name of the function being compiled
+    String functionName;
 
     /**
      * Constructor The name of the file with the source code is received as
@@ -59,11 +77,34 @@ public class Parser {
      * @param fileName Name of file where the source code is be read
      */
     public Parser(String fileName) {
+        this(fileName, new Options());
+    }
+
+    /**
+     * Constructor with the options of the compiler
+     *
+     * @param fileName Name of file where the source code is be read
+     * @param options  Options of the compiler
+     */
+    public Parser(String fileName, Options options) {
         try {
             this.fileName = fileName;
-            lexer = new Lexer(fileName);
+            this.className = new File(fileName).getName();
+            this.options = options;
+            cg = new CodeGenerator(fileName, options);
+            if (options.module) {
+                // the source of a module is hashed in its object file, it
+                // is read once and compiled from memory
+                String source = readSource(fileName);
+                lexer = new Lexer();
+                lexer.reset(source);
+                cg.source = source;
+            } else {
+                // a streamed source is read a chunk at a time, never all
+                // at once
+                lexer = new Lexer(fileName, !options.stream);
+            }
             token = lexer.nextToken();
-            cg = new CodeGenerator(fileName);
             staticVariables = new SymbolTable();
         } catch (FileNotFoundException ex) {
             System.out.println("File not found " + fileName);
@@ -71,6 +112,44 @@ public class Parser {
         }
     }
 
+    private static String readSource(String fileName)
+            throws FileNotFoundException {
+        try {
+            // the same charset as the Scanner of the Lexer
+            return new String(Files.readAllBytes(
+                    Paths.get(fileName + ".txt")));
+        } catch (IOException e) {
+            throw new FileNotFoundException(fileName + ".txt");
+        }
+    }
+
+    /**
+     * Constructor for a parser without input, used to compile sources in
+     * memory. The source is given with reset.
+     */
+    public Parser() {
+        lexer = new Lexer();
+        cg = new CodeGenerator("Main", new Options());
+    }
+
+    /**
+     * Prepares the parser, its lexer and its code generator for a new
+     * source, so that the same objects can be used again
+     *
+     * @param source  source code
+     * @param options options of the compiler
+     */
+    public void reset(CharSequence source, Options options) {
+        this.fileName = options.fileName;
+        this.className = new File(fileName).getName();
+        this.options = options;
+        lexer.reset(source);
+        cg.reset(fileName, options);
+        cg.source = source;
+        staticVariables = new SymbolTable();
+        token = lexer.nextToken();
+    }
+
     /**
      * Check if the current token is the same as expected, as per the derivation
      *
@@ -82,7 +161,6 @@ public class Parser {
         } else {
             error("Expected: " + lexer.getTokenText(expected)
                     + " found: " + lexer.getTokenText(token.code));
-            System.exit(0);
         }
     }
 
@@ -122,23 +200,47 @@ public class Parser {
             text = null;
             error("Expected: constant, found: "
                     + lexer.getTokenText(token.code));
-            System.exit(0);
         }
         return text;
     }
 
     /**
-     * <program> ::= program <funDefinition> endprogram
+     * Compiles the program and writes the generated code. Errors are
+     * printed and end the program. In streaming mode each function is
+     * written when it ends, and the output is deleted if the compilation
+     * fails for any reason.
      */
     public void program() {
+        try {
+            if (options.stream) {
+                cg.openStream();
+            }
+            if (parseProgram()) {
+                System.out.println("No errors found");
+                cg.writeFile();
+            }
+        } catch (CompileError e) {
+            cg.discardStream();
+            System.out.println(e.getMessage());
+            System.exit(0);
+        } finally {
+            // after any other failure too, a complete output is kept
+            cg.discardStream();
+        }
+    }
+
+    /**
+     * <program> ::= program <funDefinition> endprogram
+     *
+     * @return true if the whole input is a program
+     * @throws CompileError if there is a syntax error
+     */
+    public boolean parseProgram() {
         recognize(Lexer.PROGRAM);
         staticVariables();
         funDefinitionList();
         recognize(Lexer.ENDPROGRAM);
-        if (token.code == Lexer.EOF) {
-            System.out.println("No errors found");
-            cg.writeFile();
-        }
+        return token.code == Lexer.EOF;
     }
 
     /**
@@ -155,11 +257,10 @@ public class Parser {
      * | epsilon
      */
     public void funDefinitionList() {
-        if (token.code == Lexer.DEF) {
+        // a loop instead of the recursion, so that the number of functions
+        // is not limited by the Java stack
+        while (token.code == Lexer.DEF) {
             funDefinition();
-            funDefinitionList();
-        } else {
-            // nothing, epsilon
         }
     }
 
@@ -172,8 +273,10 @@ public class Parser {
      */
     public void funDefinition() {
         // Header
+        int line = token.line;
         recognize(Lexer.DEF);
         String text = recognizeVariable();
+        functionName = text;
         recognize(Lexer.LPAREN);
         argumentVariables = new SymbolTable();
         int count = varDefList(argumentVariables, 0);
@@ -186,7 +289,8 @@ public class Parser {
         // Variable definitions
         localVariables = new SymbolTable();
         count = varDefList(localVariables, 0);
-        cg.generateFunctionHeader(fileName + "." + text, count);
+        cg.generateFunctionHeader(className + "." + text, count);
+        cg.recordFunctionLine(line);
         // Statements
         statementList();
         recognize(Lexer.ENDDEF);
@@ -195,6 +299,7 @@ public class Parser {
             cg.generateLabel("END_OF_PROGRAM");
             cg.generateGoto("END_OF_PROGRAM");
         }
+        cg.endFunction();
     }
 
     /**
@@ -205,16 +310,14 @@ public class Parser {
      * @param count number of defined variables
      */
     public int varDefList(SymbolTable table, int count) {
-        if (token.code == Lexer.INT) {
+        while (token.code == Lexer.INT) {
             // all variable definitions start with "int"
             // Note that the token is not recoginzed here but in
             // varDef
             varDef(table);
-            return varDefList(table, count + 1);
-        } else {
-            // nothing, epsilon
-            return count;
+            count++;
         }
+        return count;
     }
 
     /**
@@ -235,7 +338,9 @@ public class Parser {
      *
      */
     public void statementList() {
-        if (token.code == Lexer.CALL
+        // a loop instead of the recursion, so that long functions do not
+        // grow the Java stack
+        while (token.code == Lexer.CALL
                 || token.code == Lexer.VARIABLE
                 || token.code == Lexer.WHILE
                 || token.code == Lexer.RETURN
@@ -243,9 +348,6 @@ public class Parser {
                 || token.code == Lexer.REPEAT
                 || token.code == Lexer.IF) {
             statement();
-            statementList();
-        } else {
-            // nothing, epsilon
         }
     }
 
@@ -254,13 +356,15 @@ public class Parser {
      * <statment> ::= read variable
      * | print variable
      * | call variable lparen
-     * | return
+     * | return <expr>
      * | assignment
      * | while
      */
     public void statement() {
         String text = null;
         Pair pair = null;
+        // line of the statement, for the instrumentation
+        int line = token.line;
         switch (token.code) {
             /*
              * case Lexer.READ:
@@ -278,17 +382,18 @@ public class Parser {
                 recognize(Lexer.LPAREN);
                 int numArgs = exprList(0);
                 recognize(Lexer.RPAREN);
-                cg.generateCall(this.fileName + "." + text, numArgs);
+                cg.generateCall(qualifiedName(text), numArgs);
                 cg.generatePushPop(CodeGenerator.POP, CodeGenerator.TEMP, 0);
                 break;
             case Lexer.RETURN:
                 recognize(Lexer.RETURN);
-                text = recognizeVariable();
-                pair = findVariableType(text);
-                if (pair == null) {
-                    error("Undefined variable: " + text);
+                expr(); // expr leaves the value to return in the stack
+                // a call of the function to itself becomes a jump
+                if (options.tailCalls && cg.generateTailCall(
+                        qualifiedName(functionName),
+                        argumentVariables.pos, localVariables.pos)) {
+                    break;
                 }
-                cg.generatePushPop(CodeGenerator.PUSH, pair.first, pair.second);
                 cg.generateMathOrLogic(CodeGenerator.RETURN);
                 break;
             case Lexer.VARIABLE:
@@ -298,9 +403,9 @@ public class Parser {
                 recognize(Lexer.WHILE);
                 String labelStart = cg.createLabel();
                 String labelEnd = cg.createLabel();
+                cg.recordLine(labelStart, line);
                 cg.generateLabel(labelStart);
-                condition();
-                cg.generateIfGoto(labelEnd);
+                cg.generateJump(condition(), false, labelEnd);
                 statementList();
                 recognize(Lexer.ENDWHILE);
                 cg.generateGoto(labelStart);
@@ -317,22 +422,19 @@ public class Parser {
             case Lexer.REPEAT:
                 recognize(Lexer.REPEAT);
                 String labelRepeat = cg.createLabel();
-                String labelEndRepeat = cg.createLabel();
+                cg.recordLine(labelRepeat, line);
                 cg.generateLabel(labelRepeat);
                 statementList();
                 recognize(Lexer.UNTIL);
-                condition();
-                cg.generateMathOrLogic(CodeGenerator.NOT);
-                cg.generateIfGoto(labelEndRepeat);
-                cg.generateGoto(labelRepeat);
-                cg.generateLabel(labelEndRepeat);
+                // repeats while the condition is false
+                cg.generateJump(condition(), false, labelRepeat);
                 break;
             case Lexer.IF:
                 recognize(Lexer.IF);
-                condition();
+                Cond cond = condition();
                 String labelElse = cg.createLabel();
                 String labelEndIF = cg.createLabel();
-                cg.generateIfGoto(labelElse);
+                cg.generateJump(cond, false, labelElse);
                 statementList();
                 cg.generateGoto(labelEndIF);
                 recognize(Lexer.ELSE);
@@ -348,45 +450,104 @@ public class Parser {
     }
 
     /**
-     * Handles conditions that return boolean values
+     * Handles conditions that return boolean values. The code is not
+     * generated here: the statement generates the jumps of the condition
+     * with CodeGenerator.generateJump
+     * @return condition
      */
-    public void condition() {
+    public Cond condition() {
         if (token.code == Lexer.LPAREN) {
             recognize(Lexer.LPAREN);
         } else {
             error("Expecting ( " + "found " + lexer.getTokenText(token.code));
         }
-        expr();
-        int code = compOp();
-        expr();
-        // Jums when the condition is NOT met
-        if (code == Lexer.EQUALS) {
-            cg.generateMathOrLogic(CodeGenerator.EQ);
-            cg.generateMathOrLogic(CodeGenerator.NOT);
-
-        } else if (code == Lexer.NEQ) {
-            cg.generateMathOrLogic(CodeGenerator.EQ);
-
-        } else if (code == Lexer.GT) {
-            cg.generateMathOrLogic(CodeGenerator.GT);
-            cg.generateMathOrLogic(CodeGenerator.NOT);
-
-        } else if (code == Lexer.LT) {
-            cg.generateMathOrLogic(CodeGenerator.LT);
-            cg.generateMathOrLogic(CodeGenerator.NOT);
+        Cond cond = comparison(boolExpr());
+        if (token.code == Lexer.RPAREN) {
+            recognize(Lexer.RPAREN);
+        } else {
+            error("Expecting ) " + "found " + lexer.getTokenText(token.code));
+        }
+        return cond;
+    }
 
-        } else if (code == Lexer.GE) {
-            cg.generateMathOrLogic(CodeGenerator.LT);
+    /**
+     * <boolExpr> ::= <boolTerm> { or <boolTerm> }
+     * @return condition, or an expression if there is no comparison
+     */
+    private Cond boolExpr() {
+        Cond cond = boolTerm();
+        while (token.code == Lexer.OR) {
+            recognize(Lexer.OR);
+            cond = new Cond(Cond.OR, comparison(cond), comparison(boolTerm()));
+        }
+        return cond;
+    }
 
-        } else if (code == Lexer.LE) {
-            cg.generateMathOrLogic(CodeGenerator.GT);
+    /**
+     * <boolTerm> ::= <boolFactor> { and <boolFactor> }
+     * @return condition, or an expression if there is no comparison
+     */
+    private Cond boolTerm() {
+        Cond cond = boolFactor();
+        while (token.code == Lexer.AND) {
+            recognize(Lexer.AND);
+            cond = new Cond(Cond.AND, comparison(cond),
+                    comparison(boolFactor()));
         }
+        return cond;
+    }
 
-        if (token.code == Lexer.RPAREN) {
+    /**
+     * <boolFactor> ::= not <boolFactor> | lparen <boolExpr> rparen
+     *      | <expr> <compOp> <expr>
+     * The code of the expressions is taken from the code generator, it is
+     * generated again where the condition jumps.
+     * @return condition, or an expression if there is no comparison
+     */
+    private Cond boolFactor() {
+        if (token.code == Lexer.NOT) {
+            recognize(Lexer.NOT);
+            return new Cond(Cond.NOT, comparison(boolFactor()), null);
+        }
+        int mark = cg.mark();
+        if (token.code == Lexer.LPAREN) {
+            recognize(Lexer.LPAREN);
+            Cond inner = boolExpr();
             recognize(Lexer.RPAREN);
+            if (inner.kind != Cond.EXPR) {
+                return inner;
+            }
+            // an expression in parenthesis, the rest of the expression follows
+            cg.paste(inner.left);
+            termRest();
+            exprRest();
         } else {
-            error("Expecting ) " + "found " + lexer.getTokenText(token.code));
+            expr();
+        }
+        String left = cg.cut(mark);
+        if (!isCompOp(token.code)) {
+            return new Cond(left);
+        }
+        int operator = compOp();
+        expr();
+        return new Cond(left, operator, cg.cut(mark));
+    }
+
+    /**
+     * Checks that a condition is not only an expression
+     * @param cond condition
+     * @return the condition
+     */
+    private Cond comparison(Cond cond) {
+        if (cond.kind == Cond.EXPR) {
+            error("Expected Conditional Operator found  " + token.code);
         }
+        return cond;
+    }
+
+    private boolean isCompOp(int code) {
+        return code == Lexer.EQUALS || code == Lexer.NEQ || code == Lexer.GT
+                || code == Lexer.GE || code == Lexer.LT || code == Lexer.LE;
     }
 
     /**
@@ -470,7 +631,9 @@ public class Parser {
     if (token.code == Lexer.MULT) {
         recognize(Lexer.MULT);
         factor();
-        cg.generateCall(this.fileName + "." + "mult", 2);
+        // the runtime always defines Main.mult, whatever the file name:
+        // a call to fileName.mult was only valid for Main.txt
+        cg.generateCall(CodeGenerator.MULT_FUNCTION, 2);
         termRest();
         
     } else {
@@ -494,6 +657,9 @@ public class Parser {
             case Lexer.VARIABLE:
                 text = recognizeVariable();
                 Pair pair = findVariableType(text);
+                if (pair == null) {
+                    error("Undefined variable: " + text);
+                }
                 cg.generatePushPop(CodeGenerator.PUSH, pair.first, pair.second);
                 break;
             case Lexer.CALLF:
@@ -502,7 +668,7 @@ public class Parser {
                 recognize(Lexer.LPAREN);
                 int numArgs = exprList(0);
                 recognize(Lexer.RPAREN);
-                cg.generateCall(this.fileName + "." + text, numArgs);
+                cg.generateCall(qualifiedName(text), numArgs);
                 break;
             case Lexer.LPAREN:
                 recognize(Lexer.LPAREN);
@@ -515,6 +681,20 @@ public class Parser {
         }
     }
 
+    /**
+     * Full name of a called function. Names of another module are already
+     * qualified (Module.function); the others belong to this module.
+     * 
+     * @param name name used in the call
+     * @return name of the VM function
+     */
+    private String qualifiedName(String name) {
+        if (name.contains(".")) {
+            return name;
+        }
+        return className + "." + name;
+    }
+
     /**
      * Finds which Symbol Table the variable should be added to
      * (static, argument, local) as well as the offset within the
@@ -555,20 +735,18 @@ public class Parser {
     /**
      * Handles a list of expressions
      * 
-     * @param count how many expressions have been parsed. This is a recursive call
-     * @return
+     * @param count how many expressions have been parsed before
+     * @return number of expressions
      */
     public int exprList(int count) {
-        if (token.code == Lexer.CONSTANT
+        while (token.code == Lexer.CONSTANT
                 || token.code == Lexer.VARIABLE
                 || token.code == Lexer.LPAREN
                 || token.code == Lexer.CALLF) {
             expr();
-            return exprList(count + 1);
-        } else {
-            // nothing, epsilon
-            return count;
+            count++;
         }
+        return count;
     }
 
     /**
@@ -599,10 +777,8 @@ public class Parser {
      * @param message
      */
     private void error(String message) {
-        System.out.print("Line " + (lexer.lineNumber - 1) + ": ");
-        System.out.println("Syntax Error");
-        System.out.println(message);
-        System.exit(0);
+        throw new CompileError("Line " + (lexer.lineNumber - 1) + ": "
+                + "Syntax Error\n" + message);
     }
 
 }
@@ -621,4 +797,4 @@ class Pair {
         this.first = first;
         this.second = second;
     }
-}
\ No newline at end of file
+}
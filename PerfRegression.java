@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performance regression suite for the generated code.
+ *
+ * Compiles the programs of the corpus with all the optimisations, runs
+ * them on the VM interpreter and compares the number of instructions
+ * executed, the size of the code and the values printed with the
+ * baselines stored in corpus/baselines.txt. The suite fails when a value
+ * printed changes or when a program gets slower or bigger than the
+ * baseline by more than the threshold, when a program does not compile
+ * or fails on the interpreter, and when a program has no baseline or a
+ * baseline has no program. The exit code is 1 on failures.
+ *
+ * Usage: java PerfRegression [-update] [-threshold percent]
+ * It has to be run from the directory of the project.
+ */
+public class PerfRegression {
+
+    public static final String CORPUS = "corpus";
+    public static final String BASELINES = CORPUS + "/baselines.txt";
+    // The sample program is part of the corpus
+    public static final String SAMPLE = "JavaClass/Main.txt";
+    public static final double DEFAULT_THRESHOLD = 5.0;
+    // Maximum number of instructions executed by a program of the corpus
+    public static final long MAX_STEPS = 10000000;
+
+    public static void main(String [] args) throws IOException {
+        boolean update = false;
+        double threshold = DEFAULT_THRESHOLD;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-update")) {
+                update = true;
+            } else if (args[i].equals("-threshold")) {
+                threshold = Double.parseDouble(args[++i]);
+            }
+        }
+        Map<String, Measure> baselines = readBaselines();
+        Map<String, Measure> measures = new LinkedHashMap<>();
+        for (String program : corpus()) {
+            measures.put(program, measure(program));
+        }
+        if (update) {
+            for (Map.Entry<String, Measure> e : measures.entrySet()) {
+                if (e.getValue().error != null) {
+                    System.out.println(e.getKey() + " FAIL "
+                            + e.getValue().error);
+                    System.out.println("Baselines not updated");
+                    System.exit(1);
+                }
+            }
+            writeBaselines(measures);
+            System.out.println("Baselines updated: " + BASELINES);
+            return;
+        }
+        int failures = 0;
+        for (Map.Entry<String, Measure> e : measures.entrySet()) {
+            Measure now = e.getValue();
+            Measure before = baselines.get(e.getKey());
+            String status = "ok";
+            if (now.error != null) {
+                status = "FAIL " + now.error;
+            } else if (before == null) {
+                status = "FAIL no baseline";
+            } else if (!now.output.equals(before.output)) {
+                status = "FAIL output " + now.output + " expected "
+                        + before.output;
+            } else if (worse(now.steps, before.steps, threshold)
+                    || worse(now.size, before.size, threshold)) {
+                status = "FAIL regression";
+            }
+            if (status.startsWith("FAIL")) {
+                failures++;
+            }
+            System.out.println(String.format(
+                    "%-22s steps %8d (%s) size %5d (%s) %s",
+                    e.getKey(), now.steps,
+                    before == null ? "-" : "" + before.steps,
+                    now.size, before == null ? "-" : "" + before.size,
+                    status));
+        }
+        // a program removed from the corpus has to be removed from the
+        // baselines too
+        for (String program : baselines.keySet()) {
+            if (!measures.containsKey(program)) {
+                failures++;
+                System.out.println(String.format("%-22s FAIL not in the corpus",
+                        program));
+            }
+        }
+        System.out.println(measures.size() + " programs, " + failures
+                + " failures (threshold " + threshold + "%)");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Programs of the corpus: the sample program and the .txt files of
+     * the corpus directory
+     * @return paths of the programs
+     */
+    private static List<String> corpus() {
+        List<String> programs = new ArrayList<>();
+        programs.add(SAMPLE);
+        String[] files = new File(CORPUS).list();
+        if (files != null) {
+            Arrays.sort(files);
+            for (String name : files) {
+                if (name.endsWith(".txt") && !name.equals("baselines.txt")) {
+                    programs.add(CORPUS + "/" + name);
+                }
+            }
+        }
+        return programs;
+    }
+
+    /**
+     * Compiles and runs a program
+     * @param program path of the source file
+     * @return measures of the generated code, or the error found
+     */
+    private static Measure measure(String program) throws IOException {
+        String source = new String(Files.readAllBytes(Paths.get(program)));
+        Options options = new Options();
+        options.fileName = new File(program).getName().replace(".txt", "");
+        options.fold = true;
+        options.licm = true;
+        options.cse = true;
+        options.tailCalls = true;
+        options.slots = true;
+        options.compact = true;
+        Measure m = new Measure();
+        CompilationResult result;
+        try {
+            result = new Compiler().compile(source, options);
+        } catch (RuntimeException e) {
+            m.error = "Compiler crash " + e;
+            return m;
+        }
+        if (!result.isSuccess()) {
+            m.error = result.getError().replace("\n", " ");
+            return m;
+        }
+        String code = result.getCode();
+        for (String line : code.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                m.size++;
+            }
+        }
+        VMInterpreter vm;
+        try {
+            vm = new VMInterpreter(code);
+            vm.maxSteps = MAX_STEPS;
+            vm.run(options.fileName + ".main");
+        } catch (IllegalStateException e) {
+            m.error = "Runtime Error " + e.getMessage();
+            return m;
+        } catch (RuntimeException e) {
+            m.error = "Runtime Error " + e;
+            return m;
+        }
+        m.steps = vm.steps;
+        m.output = vm.output.toString().replace(" ", "");
+        return m;
+    }
+
+    private static boolean worse(long now, long before, double threshold) {
+        return now > before * (1 + threshold / 100);
+    }
+
+    /**
+     * Reads the baselines. Each line has the program, the instructions
+     * executed, the size of the code and the values printed.
+     * @return baselines by program
+     */
+    private static Map<String, Measure> readBaselines() throws IOException {
+        Map<String, Measure> baselines = new LinkedHashMap<>();
+        Path path = Paths.get(BASELINES);
+        if (!Files.exists(path)) {
+            return baselines;
+        }
+        for (String line : Files.readAllLines(path)) {
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+            String[] words = line.trim().split("\\s+");
+            Measure m = new Measure();
+            m.steps = Long.parseLong(words[1]);
+            m.size = Long.parseLong(words[2]);
+            m.output = words[3];
+            baselines.put(words[0], m);
+        }
+        return baselines;
+    }
+
+    private static void writeBaselines(Map<String, Measure> measures)
+            throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# program steps size output");
+        for (Map.Entry<String, Measure> e : measures.entrySet()) {
+            Measure m = e.getValue();
+            lines.add(e.getKey() + " " + m.steps + " " + m.size + " "
+                    + m.output);
+        }
+        Files.write(Paths.get(BASELINES), lines);
+    }
+}
+
+/**
+ * Measures of the code generated for a program
+ */
+class Measure {
+
+    // instructions executed
+    long steps;
+    // lines of VM code
+    long size;
+    // values printed, as [v1,v2,...]
+    String output;
+    // compilation or execution error, null if there is none
+    String error;
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution profile of a program: the number of calls of each function
+ * the number of times each label was reached, and the number of times
+ * each if-goto did not jump, counted by running the program on the VM
+ * interpreter.
+ *
+ * Profile file, one count per line:
+ * # profile steps
+ * function Main.f calls
+ * label Main.f label3 hits
+ * fallthrough Main.f label3 count (if-goto label3 without jumping)
+ */
+public class Profile {
+
+    // Maximum number of instructions executed by the profiled program
+    public static final long MAX_STEPS = 100000000;
+
+    // calls of each function of the program, 0 if it was never called
+    Map<String, Long> calls;
+    // hits of each label, by function and label name
+    Map<String, Long> hits;
+    // times the if-goto to each label did not jump, by function and label
+    Map<String, Long> fallThroughs;
+    long steps;
+
+    public Profile() {
+        calls = new LinkedHashMap<>();
+        hits = new HashMap<>();
+        fallThroughs = new HashMap<>();
+    }
+
+    /**
+     * Runs a program on the interpreter and records its profile
+     * @param code VM code of the program
+     * @param entry name of the main function
+     * @return profile
+     * @throws IllegalStateException if the program cannot be executed
+     */
+    public static Profile record(String code, String entry) {
+        Profile profile = new Profile();
+        for (VMFunction f : VMCode.parse(code)) {
+            profile.calls.put(f.name, 0L);
+        }
+        VMInterpreter vm = new VMInterpreter(code);
+        vm.profile = profile;
+        vm.maxSteps = MAX_STEPS;
+        vm.run(entry);
+        profile.steps = vm.steps;
+        return profile;
+    }
+
+    /**
+     * Counts a call of a function
+     */
+    void enter(String function) {
+        calls.merge(function, 1L, Long::sum);
+    }
+
+    /**
+     * Counts a label reached by a jump or by falling through
+     */
+    void hit(String function, String label) {
+        hits.merge(function + " " + label, 1L, Long::sum);
+    }
+
+    /**
+     * Counts an if-goto that did not jump
+     */
+    void fallThrough(String function, String label) {
+        fallThroughs.merge(function + " " + label, 1L, Long::sum);
+    }
+
+    /**
+     * Number of times the if-goto to a label did not jump
+     * @param function name of the function of the label
+     * @param label name of the label
+     * @return count, 0 if it is not in the profile
+     */
+    public long fallThroughs(String function, String label) {
+        return fallThroughs.getOrDefault(function + " " + label, 0L);
+    }
+
+    /**
+     * Number of calls of a function
+     * @param function name of the function
+     * @return calls, 0 if the function is not in the profile
+     */
+    public long calls(String function) {
+        return calls.getOrDefault(function, 0L);
+    }
+
+    /**
+     * Number of times a label was reached
+     * @param function name of the function of the label
+     * @param label name of the label
+     * @return hits, 0 if the label is not in the profile
+     */
+    public long hits(String function, String label) {
+        return hits.getOrDefault(function + " " + label, 0L);
+    }
+
+    /**
+     * Returns true if the function is in the profile and was never called.
+     * Functions that are not in the profile (added after it was recorded)
+     * are not cold.
+     * @param function name of the function
+     * @return true if the function is cold
+     */
+    public boolean isCold(String function) {
+        return calls.containsKey(function) && calls.get(function) == 0;
+    }
+
+    /**
+     * Writes the profile to a file
+     * @param fileName name of the file
+     */
+    public void write(String fileName) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# profile " + steps);
+        for (Map.Entry<String, Long> e : calls.entrySet()) {
+            lines.add("function " + e.getKey() + " " + e.getValue());
+        }
+        for (Map.Entry<String, Long> e : hits.entrySet()) {
+            lines.add("label " + e.getKey() + " " + e.getValue());
+        }
+        for (Map.Entry<String, Long> e : fallThroughs.entrySet()) {
+            lines.add("fallthrough " + e.getKey() + " " + e.getValue());
+        }
+        Files.write(Paths.get(fileName), lines);
+    }
+
+    /**
+     * Reads a profile from a file
+     * @param fileName name of the file
+     * @return profile
+     * @throws CompileError if the file cannot be read
+     */
+    public static Profile read(String fileName) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(fileName));
+        } catch (IOException e) {
+            throw new CompileError("Cannot read profile: " + fileName);
+        }
+        return parse(lines);
+    }
+
+    /**
+     * Builds a profile from the text of a profile file
+     * @param text contents of the file
+     * @return profile
+     * @throws CompileError if a line is not valid
+     */
+    public static Profile fromText(String text) {
+        return parse(Arrays.asList(text.split("\\R")));
+    }
+
+    private static Profile parse(List<String> lines) {
+        Profile profile = new Profile();
+        for (String line : lines) {
+            String[] words = line.trim().split("\\s+");
+            try {
+                if (words[0].equals("function") && words.length == 3) {
+                    profile.calls.put(words[1], Long.parseLong(words[2]));
+                } else if (words[0].equals("label") && words.length == 4) {
+                    profile.hits.put(words[1] + " " + words[2],
+                            Long.parseLong(words[3]));
+                } else if (words[0].equals("fallthrough")
+                        && words.length == 4) {
+                    profile.fallThroughs.put(words[1] + " " + words[2],
+                            Long.parseLong(words[3]));
+                } else if (words[0].equals("#") && words.length == 3) {
+                    profile.steps = Long.parseLong(words[2]);
+                }
+            } catch (NumberFormatException e) {
+                throw new CompileError("Invalid profile line: " + line);
+            }
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,438 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimisations guided by an execution profile (see Profile).
+ *
+ * - Layout of if/else: the parser puts the then part first, and it ends
+ *   with a goto to the end of the if; the else part falls through to the
+ *   end. When the profile shows that swapping the parts executes fewer
+ *   instructions, the condition is inverted and the then part is placed
+ *   last, so that it falls through to the end instead of jumping.
+ * - Inlining: calls to small, hot, non-recursive functions are replaced
+ *   by the code of the function. The arguments and locals of the callee
+ *   become new locals of the caller, its labels are renamed and its
+ *   returns jump to the end of the inlined code.
+ * - Cold functions (never called in the profile) are left as they are,
+ *   and the other passes skip them too.
+ */
+public class ProfileGuided {
+
+    // Minimum number of calls of a function to be inlined
+    public static final long HOT_CALLS = 10;
+    // Maximum number of instructions of a function to be inlined
+    public static final int MAX_INLINE_SIZE = 40;
+    // Inlining is repeated so that inlined calls can be inlined too
+    public static final int MAX_ROUNDS = 3;
+    // Prefix of the labels of the inlined code
+    public static final String INLINE_PREFIX = "INLINE";
+
+    Profile profile;
+    // functions never called in the profile
+    Set<String> cold;
+    List<String> swapped;
+    List<String> inlined;
+    int inlineCount;
+
+    /**
+     * Constructor
+     * @param profile profile of the program
+     */
+    public ProfileGuided(Profile profile) {
+        this.profile = profile;
+        cold = new HashSet<>();
+        swapped = new ArrayList<>();
+        inlined = new ArrayList<>();
+    }
+
+    /**
+     * Optimizes the VM code
+     * @param code VM code
+     * @return optimized VM code
+     */
+    public String optimize(String code) {
+        List<VMFunction> functions = VMCode.parse(code);
+        for (VMFunction f : functions) {
+            if (profile.isCold(f.name)) {
+                cold.add(f.name);
+            } else {
+                layout(f);
+            }
+        }
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            if (!inlineCalls(functions)) {
+                break;
+            }
+        }
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Report of the changes made with the profile
+     * @return report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (String s : swapped) {
+            sb.append("PGO: " + s + "\n");
+        }
+        for (String s : inlined) {
+            sb.append("PGO: " + s + "\n");
+        }
+        sb.append("PGO: " + swapped.size() + " if/else swapped, "
+                + inlined.size() + " calls inlined, " + cold.size()
+                + " cold functions\n");
+        return sb.toString();
+    }
+
+    /**
+     * Swaps the then and else parts of the ifs of a function when the
+     * profile shows that it saves instructions
+     * @param f function
+     */
+    private void layout(VMFunction f) {
+        Set<String> done = new HashSet<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < f.body.size() && !changed; i++) {
+                String[] instruction = f.body.get(i);
+                if (instruction[0].equals("if-goto")
+                        && done.add(instruction[1])) {
+                    changed = swapIfElse(f, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Swaps the parts of an if/else if it is worth it. The code of an if is
+     *   condition, if-goto ELSE, then part, goto END,
+     *   label ELSE, else part, label END
+     * @param f function
+     * @param i position of the if-goto
+     * @return true if the parts were swapped
+     */
+    private boolean swapIfElse(VMFunction f, int i) {
+        List<String[]> body = f.body;
+        String labelElse = body.get(i)[1];
+        int j = find(body, "label", labelElse);
+        if (j <= i + 1 || !body.get(j - 1)[0].equals("goto")) {
+            return false;
+        }
+        String labelEnd = body.get(j - 1)[1];
+        int k = find(body, "label", labelEnd);
+        if (k <= j || jumps(body, labelElse) != 1
+                || jumps(body, labelEnd) != 1 || i == 0) {
+            return false;
+        }
+        // the condition has to be a boolean (0 or -1) to be inverted
+        boolean negated = body.get(i - 1)[0].equals("not");
+        if (negated && i < 2) {
+            return false;
+        }
+        if (!isComparison(body.get(negated ? i - 2 : i - 1))) {
+            return false;
+        }
+        // counted where each part starts: the if-goto jumps to the else
+        // part or falls through to the then part (the end label is not
+        // reached when a part returns)
+        long elseCount = profile.hits(f.name, labelElse);
+        long thenCount = profile.fallThroughs(f.name, labelElse);
+        // instructions executed by the goto and the not of each layout, a
+        // part that ends with a return does not reach its goto
+        long before = returns(body.get(j - 2)) ? 0 : thenCount;
+        long after = (returns(body.get(k - 1)) ? 0 : elseCount)
+                + (negated ? -1 : 1) * (thenCount + elseCount);
+        if (after >= before) {
+            return false;
+        }
+        List<String[]> result = new ArrayList<>(body.subList(0,
+                negated ? i - 1 : i));
+        if (!negated) {
+            result.add(new String[] {"not"});
+        }
+        result.add(body.get(i));
+        result.addAll(body.subList(j + 1, k));
+        result.add(new String[] {"goto", labelEnd});
+        result.add(body.get(j));
+        result.addAll(body.subList(i + 1, j - 1));
+        result.addAll(body.subList(k, body.size()));
+        f.body = result;
+        swapped.add(f.name + ": if " + labelElse + " swapped (then "
+                + thenCount + ", else " + elseCount + ")");
+        return true;
+    }
+
+    private boolean returns(String[] instruction) {
+        return instruction[0].equals("return");
+    }
+
+    private boolean isComparison(String[] instruction) {
+        return instruction[0].equals("eq") || instruction[0].equals("gt")
+                || instruction[0].equals("lt");
+    }
+
+    /**
+     * Position of an instruction
+     * @return position, or -1 if it is not found
+     */
+    private int find(List<String[]> body, String operation, String label) {
+        for (int i = 0; i < body.size(); i++) {
+            if (body.get(i)[0].equals(operation)
+                    && body.get(i)[1].equals(label)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of jumps (goto and if-goto) to a label
+     */
+    private int jumps(List<String[]> body, String label) {
+        int count = 0;
+        for (String[] instruction : body) {
+            if ((instruction[0].equals("goto")
+                    || instruction[0].equals("if-goto"))
+                    && instruction[1].equals(label)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Inlines the calls to hot functions in the functions that are not
+     * cold
+     * @param functions functions of the program
+     * @return true if a call was inlined
+     */
+    private boolean inlineCalls(List<VMFunction> functions) {
+        Map<String, VMFunction> byName = new HashMap<>();
+        for (VMFunction f : functions) {
+            byName.put(f.name, f);
+        }
+        StackAnalyzer analyzer = new StackAnalyzer(VMCode.toText(functions));
+        boolean changed = false;
+        for (VMFunction f : functions) {
+            if (cold.contains(f.name)) {
+                continue;
+            }
+            for (int i = 0; i < f.body.size(); i++) {
+                String[] instruction = f.body.get(i);
+                if (!instruction[0].equals("call")) {
+                    continue;
+                }
+                VMFunction callee = byName.get(instruction[1]);
+                if (callee == null || callee == f
+                        || callee.name.equals(CodeGenerator.MULT_FUNCTION)
+                        || profile.calls(callee.name) < HOT_CALLS
+                        || callee.body.size() > MAX_INLINE_SIZE
+                        || analyzer.isRecursive(callee.name)) {
+                    continue;
+                }
+                List<String[]> code = inline(f, callee,
+                        Integer.parseInt(instruction[2]));
+                if (code == null) {
+                    continue;
+                }
+                f.body.remove(i);
+                f.body.addAll(i, code);
+                i += code.size() - 1;
+                inlined.add(f.name + ": call " + callee.name + " inlined ("
+                        + profile.calls(callee.name) + " calls)");
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Builds the code that replaces a call
+     * @param caller function with the call, it gets the new locals
+     * @param callee function called
+     * @param numArgs number of arguments of the call
+     * @return instructions, or null if the function cannot be inlined
+     */
+    private List<String[]> inline(VMFunction caller, VMFunction callee,
+            int numArgs) {
+        int[] depths = returnDepths(callee);
+        for (String[] instruction : callee.body) {
+            if (instruction.length > 2 && instruction[1].equals("argument")
+                    && Integer.parseInt(instruction[2]) >= numArgs) {
+                return null;
+            }
+        }
+        for (int depth : depths) {
+            if (depth > 1) {
+                return null;
+            }
+        }
+        int args = caller.numLocals;
+        int locals = args + numArgs;
+        caller.numLocals = locals + callee.numLocals;
+        String prefix = INLINE_PREFIX + inlineCount++ + "_";
+        String end = prefix + "END";
+        List<String[]> code = new ArrayList<>();
+        for (int a = numArgs - 1; a >= 0; a--) {
+            code.add(new String[] {"pop", "local", "" + (args + a)});
+        }
+        // the header of the callee sets to 0 the locals read before
+        // being assigned
+        BitSet zero = new LocalSlots().liveAtStart(callee);
+        for (int l = zero.nextSetBit(0); l >= 0; l = zero.nextSetBit(l + 1)) {
+            code.add(new String[] {"push", "constant", "0"});
+            code.add(new String[] {"pop", "local", "" + (locals + l)});
+        }
+        for (int i = 0; i < callee.body.size(); i++) {
+            String[] instruction = callee.body.get(i).clone();
+            switch (instruction[0]) {
+                case "push":
+                case "pop":
+                    if (instruction[1].equals("argument")) {
+                        instruction[1] = "local";
+                        instruction[2] = ""
+                                + (args + Integer.parseInt(instruction[2]));
+                    } else if (instruction[1].equals("local")) {
+                        instruction[2] = ""
+                                + (locals + Integer.parseInt(instruction[2]));
+                    }
+                    code.add(instruction);
+                    break;
+                case "label":
+                case "goto":
+                case "if-goto":
+                    instruction[1] = prefix + instruction[1];
+                    code.add(instruction);
+                    break;
+                case "return":
+                    if (depths[i] < 0) {
+                        // not reachable
+                        break;
+                    }
+                    if (depths[i] == 0) {
+                        // the function ends with an empty stack, 0 is
+                        // used as the value
+                        code.add(new String[] {"push", "constant", "0"});
+                    }
+                    code.add(new String[] {"goto", end});
+                    break;
+                default:
+                    code.add(instruction);
+                    break;
+            }
+        }
+        // the last return falls through to the end
+        String[] last = code.get(code.size() - 1);
+        if (last[0].equals("goto") && last[1].equals(end)) {
+            code.remove(code.size() - 1);
+        }
+        for (String[] instruction : code) {
+            if (instruction[0].equals("goto") && instruction[1].equals(end)) {
+                code.add(new String[] {"label", end});
+                break;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Depth of the operand stack at each return of a function, -1 for the
+     * other instructions and for the returns that cannot be reached
+     * @param f function
+     * @return depths by position
+     */
+    private int[] returnDepths(VMFunction f) {
+        int[] result = new int[f.body.size()];
+        Map<String, Integer> labelDepth = new HashMap<>();
+        int depth = 0;
+        for (int i = 0; i < f.body.size(); i++) {
+            String[] instruction = f.body.get(i);
+            result[i] = -1;
+            if (instruction[0].equals("label")) {
+                Integer known = labelDepth.get(instruction[1]);
+                if (known != null) {
+                    depth = Math.max(depth, known);
+                } else if (depth < 0) {
+                    depth = 0;
+                }
+                continue;
+            }
+            if (depth < 0) {
+                continue;
+            }
+            if (instruction[0].equals("return")) {
+                result[i] = depth;
+                depth = -1;
+                continue;
+            }
+            depth += VMCode.stackEffect(instruction);
+            if (instruction[0].equals("goto")
+                    || instruction[0].equals("if-goto")) {
+                Integer known = labelDepth.get(instruction[1]);
+                labelDepth.put(instruction[1],
+                        known == null ? depth : Math.max(known, depth));
+            }
+            if (instruction[0].equals("goto")) {
+                depth = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Main program to test. Runs a program with a hot function and an
+     * if/else, optimizes it with its profile and compares the output.
+     * @param args
+     */
+    public static void main(String [] args) {
+        String code = "function Main.main 1\n"
+                + "label loop\n"
+                + "\tpush local 0\n"
+                + "\tcall Main.sign 1\n"
+                + "\tcall Output.printInt 1\n"
+                + "\tpop temp 0\n"
+                + "\tpush local 0\n"
+                + "\tpush constant 1\n"
+                + "\tadd\n"
+                + "\tpop local 0\n"
+                + "\tpush local 0\n"
+                + "\tpush constant 20\n"
+                + "\tlt\n"
+                + "\tif-goto loop\n"
+                + "\tpush constant 0\n"
+                + "\treturn\n"
+                + "function Main.sign 1\n"
+                + "\tpush argument 0\n"
+                + "\tpush constant 2\n"
+                + "\tgt\n"
+                + "\tnot\n"
+                + "\tif-goto label0\n"
+                + "\tpush constant 1\n"
+                + "\tpop local 0\n"
+                + "\tgoto label1\n"
+                + "label label0\n"
+                + "\tpush constant 1\n"
+                + "\tneg\n"
+                + "\tpop local 0\n"
+                + "label label1\n"
+                + "\tpush local 0\n"
+                + "\treturn\n";
+        Profile profile = Profile.record(code, "Main.main");
+        ProfileGuided pgo = new ProfileGuided(profile);
+        String optimized = pgo.optimize(code);
+        System.out.print(pgo.report());
+        VMInterpreter before = new VMInterpreter(code);
+        VMInterpreter after = new VMInterpreter(optimized);
+        before.run("Main.main");
+        after.run("Main.main");
+        System.out.println(before.output.equals(after.output) + " "
+                + before.steps + " -> " + after.steps + " steps");
+    }
+}
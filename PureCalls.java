@@ -0,0 +1,267 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compile-time evaluation of calls to pure functions with constant
+ * arguments.
+ *
+ * A function is pure when it only uses its arguments and locals: it does
+ * not read or write static variables and it only calls pure functions
+ * (print and the other OS functions are not pure). A call to a pure
+ * function whose arguments are all constants is evaluated with the VM
+ * interpreter and replaced by the constant, as long as the evaluation
+ * ends within the given number of steps.
+ */
+public class PureCalls {
+
+    // Default maximum number of steps of each evaluation
+    public static final int DEFAULT_STEPS = 10000;
+
+    int maxSteps;
+    // functions that are not optimized
+    Set<String> skip;
+    Set<String> pure;
+    // number of arguments used by each function
+    Map<String, Integer> arguments;
+    List<String> folded;
+
+    /**
+     * Constructor
+     * @param maxSteps maximum number of steps of each evaluation
+     */
+    public PureCalls(int maxSteps) {
+        this.maxSteps = maxSteps;
+        folded = new ArrayList<>();
+        skip = new HashSet<>();
+    }
+
+    /**
+     * Optimizes the VM code
+     * @param code VM code
+     * @return optimized VM code
+     */
+    public String optimize(String code) {
+        List<VMFunction> functions = VMCode.parse(code);
+        pure = findPure(functions);
+        arguments = new HashMap<>();
+        for (VMFunction f : functions) {
+            arguments.put(f.name, argumentsUsed(f));
+        }
+        VMInterpreter vm = new VMInterpreter(code);
+        boolean changed = true;
+        // a folded call can make the arguments of another call constant
+        while (changed) {
+            changed = false;
+            for (VMFunction f : functions) {
+                if (!skip.contains(f.name)) {
+                    changed |= foldCalls(f, vm);
+                }
+            }
+        }
+        return VMCode.toText(functions);
+    }
+
+    /**
+     * Finds the pure functions of the program. All the functions start as
+     * pure, and the ones that use statics or call impure functions are
+     * removed until nothing changes.
+     * @param functions functions of the program
+     * @return names of the pure functions
+     */
+    private Set<String> findPure(List<VMFunction> functions) {
+        Set<String> result = new HashSet<>();
+        for (VMFunction f : functions) {
+            result.add(f.name);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (VMFunction f : functions) {
+                if (result.contains(f.name) && !isPure(f, result)) {
+                    result.remove(f.name);
+                    changed = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isPure(VMFunction f, Set<String> pureFunctions) {
+        for (String[] instruction : f.body) {
+            if ((instruction[0].equals("push") || instruction[0].equals("pop"))
+                    && instruction[1].equals("static")) {
+                return false;
+            }
+            if (instruction[0].equals("call")
+                    && !pureFunctions.contains(instruction[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the calls of a function that can be evaluated
+     * @param f function
+     * @param vm interpreter with the code of the program
+     * @return true if a call was replaced
+     */
+    private boolean foldCalls(VMFunction f, VMInterpreter vm) {
+        boolean changed = false;
+        List<String[]> body = f.body;
+        for (int i = 0; i < body.size(); i++) {
+            String[] instruction = body.get(i);
+            if (!instruction[0].equals("call")
+                    || !pure.contains(instruction[1])) {
+                continue;
+            }
+            int numArgs = Integer.parseInt(instruction[2]);
+            // the call does not pass all the arguments of the function
+            if (numArgs < arguments.get(instruction[1])) {
+                continue;
+            }
+            int[] args = constantArguments(body, i, numArgs);
+            if (args == null) {
+                continue;
+            }
+            Integer value = evaluate(vm, instruction[1], args);
+            // -32768 cannot be written with push constant and neg
+            if (value == null || value == Short.MIN_VALUE) {
+                continue;
+            }
+            List<String[]> replacement = new ArrayList<>();
+            replacement.add(new String[] {"push", "constant",
+                "" + Math.abs(value)});
+            if (value < 0) {
+                replacement.add(new String[] {"neg"});
+            }
+            body.subList(i - numArgs, i + 1).clear();
+            body.addAll(i - numArgs, replacement);
+            i = i - numArgs + replacement.size() - 1;
+            folded.add(f.name + ": " + String.join(" ", instruction)
+                    + " " + Arrays.toString(args) + " = " + value);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Number of arguments used by a function: the highest argument read or
+     * written, plus one
+     */
+    private int argumentsUsed(VMFunction f) {
+        int count = 0;
+        for (String[] instruction : f.body) {
+            if ((instruction[0].equals("push") || instruction[0].equals("pop"))
+                    && instruction[1].equals("argument")) {
+                count = Math.max(count, Integer.parseInt(instruction[2]) + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the values of the arguments of a call, if they are all
+     * pushed as constants just before the call
+     * @param body instructions of the function
+     * @param call position of the call
+     * @param numArgs number of arguments
+     * @return values of the arguments, or null if they are not constants
+     */
+    private int[] constantArguments(List<String[]> body, int call,
+            int numArgs) {
+        if (call < numArgs) {
+            return null;
+        }
+        int[] args = new int[numArgs];
+        for (int i = 0; i < numArgs; i++) {
+            String[] push = body.get(call - numArgs + i);
+            if (!push[0].equals("push") || !push[1].equals("constant")) {
+                return null;
+            }
+            args[i] = Integer.parseInt(push[2]);
+        }
+        return args;
+    }
+
+    /**
+     * Evaluates a call with the interpreter
+     * @return value returned, or null if the evaluation does not end in
+     *         the maximum number of steps or cannot be done
+     */
+    private Integer evaluate(VMInterpreter vm, String name, int[] args) {
+        vm.sp = 0;
+        vm.steps = 0;
+        vm.maxSteps = maxSteps;
+        try {
+            return vm.call(name, args);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Report of the calls replaced by constants
+     * @return report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (String s : folded) {
+            sb.append("Fold: " + s + "\n");
+        }
+        sb.append("Fold: " + folded.size() + " calls evaluated\n");
+        return sb.toString();
+    }
+
+    /**
+     * Main program to test
+     * @param args
+     */
+    public static void main(String [] args) {
+        String code = "function Main.main 0\n"
+                + "\tpush constant 3\n"
+                + "\tcall Main.square 1\n"
+                + "\tcall Main.square 1\n"
+                + "\tcall Output.printInt 1\n"
+                + "\tpop temp 0\n"
+                + "\tpush constant 1\n"
+                + "\tcall Main.loop 1\n"
+                + "\tpop temp 0\n"
+                + "\treturn\n"
+                + "function Main.square 0\n"
+                + "\tpush argument 0\n"
+                + "\tpush argument 0\n"
+                + "\tcall Main.mult 2\n"
+                + "\treturn\n"
+                + "function Main.loop 0\n"
+                + "label forever\n"
+                + "\tgoto forever\n"
+                + CodeGenerator.MULT_CODE;
+        PureCalls fold = new PureCalls(DEFAULT_STEPS);
+        String optimized = fold.optimize(code);
+        System.out.print(fold.report());
+        // square ( square ( 3 ) ) is folded, the loop is not
+        System.out.println(optimized.contains("push constant 81")
+                && optimized.contains("call Main.loop 1"));
+
+        // a call without the argument of the function is not folded
+        code = "function Main.main 0\n"
+                + "\tcall Main.next 0\n"
+                + "\tpop temp 0\n"
+                + "\treturn\n"
+                + "function Main.next 0\n"
+                + "\tpush argument 0\n"
+                + "\tpush constant 1\n"
+                + "\tadd\n"
+                + "\treturn\n";
+        fold = new PureCalls(DEFAULT_STEPS);
+        optimized = fold.optimize(code);
+        System.out.print(fold.report());
+        System.out.println(optimized.contains("call Main.next 0"));
+    }
+}
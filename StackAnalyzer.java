@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Static analysis of the stack needed by the generated VM code.
+ *
+ * For every function it computes the maximum depth of the operand stack
+ * and the size of its frame (arguments, the five words saved by the call
+ * and the locals). Using the call graph it computes the worst-case
+ * amount of stack used by a call chain. Recursive functions cannot be
+ * bounded: they are reported, and fail a limit of stack memory.
+ */
+public class StackAnalyzer {
+
+    /** Words saved by every call: return address, LCL, ARG, THIS, THAT */
+    public static final int SAVED_FRAME = 5;
+    /** Words available for the stack in the Hack RAM (256 to 2047) */
+    public static final int HACK_STACK_SIZE = 2048 - 256;
+    /** Value used for the usage of recursive functions */
+    public static final int UNBOUNDED = -1;
+
+    Map<String, FunctionInfo> functions;
+    Map<String, Integer> worstCase;
+    Set<String> recursive;
+
+    /**
+     * Constructor. Analyzes the code received as parameter
+     * @param code generated VM code
+     */
+    public StackAnalyzer(String code) {
+        functions = new LinkedHashMap<>();
+        worstCase = new HashMap<>();
+        recursive = new TreeSet<>();
+        for (VMFunction f : VMCode.parse(code)) {
+            functions.put(f.name, analyzeFunction(f));
+        }
+        // the number of arguments is only known at the call sites
+        for (FunctionInfo info : functions.values()) {
+            for (CallSite site : info.calls) {
+                FunctionInfo callee = functions.get(site.callee);
+                if (callee != null) {
+                    callee.numArgs = Math.max(callee.numArgs, site.numArgs);
+                }
+            }
+        }
+        for (String name : functions.keySet()) {
+            worstCase(name, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Computes the maximum depth of the operand stack of a function and
+     * records its call sites
+     * @param f function to analyze
+     * @return information of the function
+     */
+    private FunctionInfo analyzeFunction(VMFunction f) {
+        FunctionInfo info = new FunctionInfo(f.name, f.numLocals);
+        Map<String, Integer> labelDepth = new HashMap<>();
+        // -1 means that the current instruction is not reachable
+        // by falling through the previous one
+        int depth = 0;
+        for (String[] instruction : f.body) {
+            if (instruction[0].equals("label")) {
+                Integer known = labelDepth.get(instruction[1]);
+                if (known != null) {
+                    depth = Math.max(depth, known);
+                } else if (depth < 0) {
+                    depth = 0;
+                }
+                labelDepth.put(instruction[1], depth);
+                continue;
+            }
+            if (depth < 0) {
+                continue;
+            }
+            if (instruction[0].equals("call")) {
+                info.calls.add(new CallSite(instruction[1],
+                        Integer.parseInt(instruction[2]), depth));
+            }
+            depth += VMCode.stackEffect(instruction);
+            info.maxDepth = Math.max(info.maxDepth, depth);
+            if (instruction[0].equals("goto")
+                    || instruction[0].equals("if-goto")) {
+                Integer known = labelDepth.get(instruction[1]);
+                labelDepth.put(instruction[1],
+                        known == null ? depth : Math.max(known, depth));
+            }
+            if (instruction[0].equals("goto")
+                    || instruction[0].equals("return")) {
+                depth = -1;
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Worst-case number of words of stack used by a call to a function,
+     * not counting its arguments (they belong to the caller).
+     * @param name name of the function
+     * @param path functions in the current call chain
+     * @return words used, or UNBOUNDED if the function is recursive
+     */
+    private int worstCase(String name, List<String> path) {
+        FunctionInfo info = functions.get(name);
+        if (info == null) {
+            // OS or other external function: only the saved frame is known
+            return SAVED_FRAME;
+        }
+        Integer known = worstCase.get(name);
+        if (known != null) {
+            return known;
+        }
+        int index = path.indexOf(name);
+        if (index >= 0) {
+            recursive.addAll(path.subList(index, path.size()));
+            return UNBOUNDED;
+        }
+        path.add(name);
+        int usage = info.maxDepth;
+        for (CallSite site : info.calls) {
+            int callee = worstCase(site.callee, path);
+            if (callee == UNBOUNDED || usage == UNBOUNDED) {
+                usage = UNBOUNDED;
+            } else {
+                usage = Math.max(usage, site.depth + callee);
+            }
+        }
+        path.remove(path.size() - 1);
+        if (usage != UNBOUNDED) {
+            usage += SAVED_FRAME + info.numLocals;
+        }
+        worstCase.put(name, usage);
+        return usage;
+    }
+
+    /**
+     * Worst-case number of words of stack used when calling a function
+     * @param name name of the function
+     * @return words used, or UNBOUNDED if a recursive function is reachable
+     */
+    public int usage(String name) {
+        Integer usage = worstCase.get(name);
+        if (usage == null) {
+            return functions.containsKey(name) ? UNBOUNDED : SAVED_FRAME;
+        }
+        return usage;
+    }
+
+    /**
+     * Returns true if the function is part of a recursive call chain
+     * @param name name of the function
+     * @return true if the function is recursive
+     */
+    public boolean isRecursive(String name) {
+        return recursive.contains(name);
+    }
+
+    /**
+     * Builds a readable report of the analysis
+     * @param entry name of the function where the program starts
+     * @return report
+     */
+    public String report(String entry) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-20s %6s %5s %6s %9s %7s%n",
+                "function", "locals", "args", "frame", "maxStack", "worst"));
+        for (FunctionInfo info : functions.values()) {
+            int usage = usage(info.name);
+            sb.append(String.format("%-20s %6d %5d %6d %9d %7s%n",
+                    info.name, info.numLocals, info.numArgs,
+                    info.numArgs + SAVED_FRAME + info.numLocals,
+                    info.maxDepth,
+                    usage == UNBOUNDED ? "rec" : "" + usage));
+        }
+        int usage = usage(entry);
+        sb.append("Worst-case stack usage from " + entry + ": "
+                + (usage == UNBOUNDED ? "unbounded" : usage + " words")
+                + " (available: " + HACK_STACK_SIZE + ")\n");
+        if (!recursive.isEmpty()) {
+            sb.append("Recursive functions: "
+                    + String.join(" ", recursive) + "\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs the stack analysis when it was requested in the options.
+     * Adds the report to the messages and checks the limit of stack memory.
+     * @param code generated VM code
+     * @param entry name of the function where the program starts
+     * @param options options of the compiler
+     * @param messages list where the report is added
+     * @throws CompileError if the program may use more stack than allowed
+     */
+    public static void check(String code, String entry, Options options,
+            List<String> messages) {
+        if (!options.stackReport && options.stackLimit < 0) {
+            return;
+        }
+        StackAnalyzer analyzer = new StackAnalyzer(code);
+        if (options.stackReport) {
+            messages.add("Stack analysis: \n" + analyzer.report(entry));
+        }
+        int usage = analyzer.usage(entry);
+        if (options.stackLimit < 0) {
+            return;
+        }
+        // the recursion may be as deep as the input makes it, so the limit
+        // cannot be guaranteed
+        if (usage == UNBOUNDED) {
+            throw new CompileError("Stack Error\nThe program makes"
+                    + " recursive calls ("
+                    + String.join(" ", analyzer.recursive)
+                    + "), its stack usage is unbounded, the limit is "
+                    + options.stackLimit);
+        }
+        if (usage > options.stackLimit) {
+            throw new CompileError("Stack Error\nThe program may use "
+                    + usage + " words of stack, the limit is "
+                    + options.stackLimit);
+        }
+    }
+
+    /**
+     * Main program to test
+     * @param args
+     */
+    public static void main(String [] args) {
+        String code = "function Main.main 1\n"
+                + "\tpush constant 2\n"
+                + "\tpush constant 3\n"
+                + "\tcall Main.f 2\n"
+                + "\tpop local 0\n"
+                + "\treturn\n"
+                + "function Main.f 2\n"
+                + "\tpush argument 0\n"
+                + "\tpush argument 1\n"
+                + "\tpush argument 0\n"
+                + "\tadd\n"
+                + "\tadd\n"
+                + "\treturn\n";
+        StackAnalyzer analyzer = new StackAnalyzer(code);
+        System.out.println(analyzer.report("Main.main"));
+        // Main.f: 3 operands + 5 saved + 2 locals = 10
+        // Main.main: 2 arguments on the stack + 10 + 5 saved + 1 local = 18
+        System.out.println(analyzer.usage("Main.main") == 18);
+    }
+}
+
+/**
+ * Information collected about a function of the generated code
+ */
+class FunctionInfo {
+
+    String name;
+    int numLocals;
+    int numArgs;
+    int maxDepth;
+    List<CallSite> calls;
+
+    public FunctionInfo(String name, int numLocals) {
+        this.name = name;
+        this.numLocals = numLocals;
+        this.calls = new ArrayList<>();
+    }
+}
+
+/**
+ * A call instruction found in a function, with the depth of the
+ * operand stack (arguments included) when the call is made
+ */
+class CallSite {
+
+    String callee;
+    int numArgs;
+    int depth;
+
+    public CallSite(String callee, int numArgs, int depth) {
+        this.callee = callee;
+        this.numArgs = numArgs;
+        this.depth = depth;
+    }
+}
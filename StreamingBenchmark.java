@@ -0,0 +1,252 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the streaming mode of the compiler.
+ *
+ * First checks that the streaming mode generates the same code as a
+ * compilation in memory with the same options of one function (-tailcalls
+ * -slots, -compact merges code of the whole program when not streamed).
+ * Then generates a program of the given size, with many functions with
+ * loops, conditions and calls, and compiles it with -stream -tailcalls
+ * -slots -compact in a new JVM with a small fixed heap (HEAP_MB), so
+ *
+ *   java StreamingBenchmark 2048
+ *
+ * compiles a 2 GB program in 32 MB of heap. It reports the source read per
+ * second and the heap kept by the compiler (the biggest heap used after a
+ * garbage collection). The memory of the streaming mode does not depend on
+ * the size of the program: the benchmark fails (exit code 1) if the
+ * compiler keeps the program in memory and runs out of heap, or if the
+ * code is not the same.
+ */
+public class StreamingBenchmark {
+
+    // Megabytes of source generated by default
+    public static final int DEFAULT_SIZE_MB = 64;
+    // Heap of the JVM that compiles the big program
+    public static final int HEAP_MB = 32;
+    // Megabytes of the program compiled both ways
+    public static final int CHECK_SIZE_MB = 1;
+
+    /**
+     * Main program
+     * @param args size of the program in MB (default 64)
+     */
+    public static void main(String [] args) throws IOException,
+            InterruptedException {
+        if (args.length == 2 && args[0].equals("-compile")) {
+            compile(args[1]);
+            return;
+        }
+        long size = (args.length > 0 ? Long.parseLong(args[0])
+                : DEFAULT_SIZE_MB) << 20;
+        Path dir = Files.createTempDirectory("stream");
+        String name = dir.resolve("Big").toString();
+        File source = new File(name + ".txt");
+        File output = new File(name + ".vm");
+        boolean passed;
+        try {
+            passed = sameCode(name);
+            if (passed) {
+                int functions = generate(source, size);
+                System.out.println("Generated " + source.length()
+                        + " characters, " + functions + " functions");
+                passed = compileWithHeap(name);
+            }
+        } finally {
+            source.delete();
+            output.delete();
+            dir.toFile().delete();
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compiles a program with and without -stream and compares the code
+     * @param name file name, without extension
+     * @return true if the code is the same
+     */
+    private static boolean sameCode(String name) throws IOException {
+        File source = new File(name + ".txt");
+        generate(source, CHECK_SIZE_MB << 20);
+        Options options = new Options();
+        options.fileName = name;
+        options.slots = true;
+        options.tailCalls = true;
+        CompilationResult expected = new Compiler().compile(
+                new String(Files.readAllBytes(source.toPath())), options);
+        options.stream = true;
+        new Parser(name, options).program();
+        String code = new String(Files.readAllBytes(
+                new File(name + ".vm").toPath()));
+        if (!expected.isSuccess() || !code.equals(expected.getCode())) {
+            System.out.println("FAIL -stream does not generate the same code"
+                    + " as a compilation in memory");
+            return false;
+        }
+        System.out.println("-stream generates the same code");
+        return true;
+    }
+
+    /**
+     * Compiles a program in a new JVM with a heap of HEAP_MB
+     * @param name file name, without extension
+     * @return true if it was compiled
+     */
+    private static boolean compileWithHeap(String name) throws IOException,
+            InterruptedException {
+        String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-Xmx" + HEAP_MB + "m",
+                "-cp", System.getProperty("java.class.path"),
+                "StreamingBenchmark", "-compile", name).inheritIO().start();
+        if (process.waitFor() != 0) {
+            System.out.println("FAIL the compilation does not run in "
+                    + HEAP_MB + " MB of heap");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compiles a program with -stream and reports the time and the heap
+     * @param name file name, without extension
+     */
+    private static void compile(String name) {
+        File source = new File(name + ".txt");
+        File output = new File(name + ".vm");
+        Options options = new Options();
+        options.stream = true;
+        options.slots = true;
+        options.compact = true;
+        options.tailCalls = true;
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        new Parser(name, options).program();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+        if (!output.exists()) {
+            System.exit(1);
+        }
+
+        double mb = source.length() / (double) (1 << 20);
+        System.out.printf("Compiled %.1f MB in %.1f s: %.1f MB/s%n", mb,
+                seconds, mb / seconds);
+        System.out.printf("Output %.1f MB%n", output.length()
+                / (double) (1 << 20));
+        System.out.printf("Heap after GC %.1f MB at most (max heap %.1f MB)%n",
+                sampler.peak / (double) (1 << 20),
+                Runtime.getRuntime().maxMemory() / (double) (1 << 20));
+    }
+
+    /**
+     * Writes a program of approximately the given size. Each function
+     * calls the previous one, and main calls the last one.
+     * @param file source file
+     * @param size characters
+     * @return number of functions
+     */
+    private static int generate(File file, long size) throws IOException {
+        int functions = 0;
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            long written = 0;
+            String text = "program\n  int total\n";
+            writer.write(text);
+            written += text.length();
+            while (written < size) {
+                text = function(functions);
+                writer.write(text);
+                written += text.length();
+                functions++;
+            }
+            text = "  def main ( )\n"
+                    + "    print ( callf " + name(functions - 1)
+                    + " ( 3 4 ) )\n"
+                    + "  enddef\n"
+                    + "endprogram\n";
+            writer.write(text);
+        }
+        return functions;
+    }
+
+    private static String function(int i) {
+        String call = i == 0 ? "a * 2"
+                : "callf " + name(i - 1) + " ( x y )";
+        return "  def " + name(i) + " ( int a int b )\n"
+                + "    int x\n"
+                + "    int y\n"
+                + "    x = a + " + (i % 100) + "\n"
+                + "    y = 0\n"
+                + "    while ( y < b and not ( x == 0 ) )\n"
+                + "      y = y + 1\n"
+                + "      if ( x > y * 3 or y == 3 )\n"
+                + "        x = x - 1\n"
+                + "      else\n"
+                + "        total = total + " + call + "\n"
+                + "      endif\n"
+                + "    endwhile\n"
+                + "    return x + y\n"
+                + "  enddef\n";
+    }
+
+    /**
+     * Name of a function, only letters are valid in names
+     */
+    private static String name(int i) {
+        StringBuilder sb = new StringBuilder();
+        do {
+            sb.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return "f" + sb;
+    }
+
+}
+
+/**
+ * Thread that samples the heap used after the last garbage collection and
+ * keeps the biggest value
+ */
+class HeapSampler extends Thread {
+
+    // Time between samples
+    static final int PERIOD_MS = 10;
+
+    volatile long peak;
+
+    public HeapSampler() {
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            long used = 0;
+            for (MemoryPoolMXBean pool
+                    : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP
+                        && pool.getCollectionUsage() != null) {
+                    used += pool.getCollectionUsage().getUsed();
+                }
+            }
+            peak = Math.max(peak, used);
+            try {
+                Thread.sleep(PERIOD_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@
 public class Token {
     int code;
     String text;
+    // line of the source where the token is
+    int line;
     
     /**
      * Constructor
@@ -16,6 +18,17 @@ public class Token {
         this.text = text;
     }
     
+    /**
+     * Constructor with the line of the token
+     * @param code numerical code of the token
+     * @param text Possibly: the text associated with the token
+     * @param line line of the source
+     */
+    public Token(int code, String text, int line) {
+        this(code, text);
+        this.line = line;
+    }
+    
     @Override
     public String toString() {
         return "" + code + " " + text;
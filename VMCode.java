@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Helper for the passes that work on the generated VM code.
+ * It splits the text produced by the CodeGenerator into functions,
+ * each one with its list of instructions, and turns it back into text.
+ */
+public class VMCode {
+
+    // Separator of the words of an instruction, compiled once as the code
+    // of every function is parsed by several passes
+    private static final Pattern WORDS = Pattern.compile("\\s+");
+
+    /**
+     * Splits the VM code into functions.
+     * Lines before the first function header are ignored.
+     * @param code VM code as produced by the CodeGenerator
+     * @return list of functions, in the same order as in the code
+     */
+    public static List<VMFunction> parse(String code) {
+        List<VMFunction> functions = new ArrayList<>();
+        VMFunction current = null;
+        for (String line : code.split("\n")) {
+            String[] words = WORDS.split(line.trim());
+            if (words[0].isEmpty() || words[0].startsWith("//")) {
+                continue;
+            }
+            if (words[0].equals("function")) {
+                current = new VMFunction(words[1], Integer.parseInt(words[2]));
+                functions.add(current);
+            } else if (current != null) {
+                current.body.add(words);
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * Turns a list of functions back into VM code, using the same
+     * layout as the CodeGenerator (labels and headers are not indented)
+     * @param functions functions to write
+     * @return VM code
+     */
+    public static String toText(List<VMFunction> functions) {
+        StringBuilder sb = new StringBuilder();
+        for (VMFunction f : functions) {
+            sb.append("function ").append(f.name).append(" ")
+                    .append(f.numLocals).append("\n");
+            for (String[] instruction : f.body) {
+                if (!instruction[0].equals("label")) {
+                    sb.append("\t");
+                }
+                sb.append(String.join(" ", instruction)).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Net effect of an instruction on the operand stack
+     * @param instruction instruction split in words
+     * @return number of values pushed minus number of values popped
+     */
+    public static int stackEffect(String[] instruction) {
+        switch (instruction[0]) {
+            case "push":
+                return 1;
+            case "pop":
+            case "if-goto":
+            case "add":
+            case "sub":
+            case "eq":
+            case "gt":
+            case "lt":
+            case "and":
+            case "or":
+                return -1;
+            case "call":
+                return 1 - Integer.parseInt(instruction[2]);
+            default:
+                // neg, not, label, goto, return
+                return 0;
+        }
+    }
+}
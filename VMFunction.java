@@ -0,0 +1,18 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A function of the generated VM code
+ */
+public class VMFunction {
+
+    String name;
+    int numLocals;
+    List<String[]> body;
+
+    public VMFunction(String name, int numLocals) {
+        this.name = name;
+        this.numLocals = numLocals;
+        this.body = new ArrayList<>();
+    }
+}
@@ -0,0 +1,334 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interpreter for the generated VM code.
+ *
+ * It is used to check that the optimisations do not change the behaviour
+ * of the programs. Values are 16 bits, as in the Hack platform. The only
+ * OS functions supported are Output.printInt and Output.println; the
+ * values printed are stored in a list.
+ */
+public class VMInterpreter {
+
+    Map<String, VMFunction> functions;
+    Map<String, Map<String, Integer>> labels;
+    int[] statics;
+    int[] temp;
+    List<Integer> output;
+    // Number of instructions executed (labels are not counted)
+    long steps;
+    // Maximum number of instructions to execute (-1: no limit)
+    long maxSteps;
+    // Counts of calls and labels reached (null: not recorded)
+    Profile profile;
+
+    int[] stack;
+    int sp;
+
+    /**
+     * Constructor
+     * @param code VM code to execute
+     */
+    public VMInterpreter(String code) {
+        functions = new HashMap<>();
+        labels = new HashMap<>();
+        for (VMFunction f : VMCode.parse(code)) {
+            functions.put(f.name, f);
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < f.body.size(); i++) {
+                if (f.body.get(i)[0].equals("label")) {
+                    positions.put(f.body.get(i)[1], i);
+                }
+            }
+            labels.put(f.name, positions);
+        }
+        statics = new int[240];
+        temp = new int[8];
+        output = new ArrayList<>();
+        maxSteps = -1;
+        stack = new int[1024];
+    }
+
+    /**
+     * Calls a function and runs until it returns
+     * @param name name of the function
+     * @param args arguments of the call
+     * @return value returned by the function
+     * @throws IllegalStateException if the code cannot be executed or
+     *         the maximum number of steps is reached
+     */
+    public int call(String name, int... args) {
+        List<Frame> frames = new ArrayList<>();
+        for (int arg : args) {
+            push(arg);
+        }
+        Frame frame = enter(name, args.length);
+        frames.add(frame);
+        while (true) {
+            if (frame.pc >= frame.function.body.size()) {
+                throw new IllegalStateException("End of function reached: "
+                        + frame.function.name);
+            }
+            String[] instruction = frame.function.body.get(frame.pc);
+            frame.pc++;
+            if (instruction[0].equals("label")) {
+                if (profile != null) {
+                    profile.hit(frame.function.name, instruction[1]);
+                }
+                continue;
+            }
+            steps++;
+            if (maxSteps >= 0 && steps > maxSteps) {
+                throw new IllegalStateException("Too many steps");
+            }
+            switch (instruction[0]) {
+                case "push":
+                    push(read(frame, instruction[1],
+                            Integer.parseInt(instruction[2])));
+                    break;
+                case "pop":
+                    write(frame, instruction[1],
+                            Integer.parseInt(instruction[2]), pop());
+                    break;
+                case "add":
+                    push(pop() + pop());
+                    break;
+                case "sub": {
+                    int b = pop();
+                    push(pop() - b);
+                    break;
+                }
+                case "neg":
+                    push(-pop());
+                    break;
+                case "eq":
+                    push(pop() == pop() ? -1 : 0);
+                    break;
+                case "gt": {
+                    int b = pop();
+                    push(pop() > b ? -1 : 0);
+                    break;
+                }
+                case "lt": {
+                    int b = pop();
+                    push(pop() < b ? -1 : 0);
+                    break;
+                }
+                case "and":
+                    push(pop() & pop());
+                    break;
+                case "or":
+                    push(pop() | pop());
+                    break;
+                case "not":
+                    push(~pop());
+                    break;
+                case "goto":
+                    frame.pc = label(frame, instruction[1]);
+                    break;
+                case "if-goto":
+                    if (pop() != 0) {
+                        frame.pc = label(frame, instruction[1]);
+                    } else if (profile != null) {
+                        profile.fallThrough(frame.function.name,
+                                instruction[1]);
+                    }
+                    break;
+                case "call": {
+                    String callee = instruction[1];
+                    int numArgs = Integer.parseInt(instruction[2]);
+                    if (functions.containsKey(callee)) {
+                        frame = enter(callee, numArgs);
+                        frames.add(frame);
+                    } else {
+                        callOS(callee, numArgs);
+                    }
+                    break;
+                }
+                case "return": {
+                    // the code generated for enddef returns with an empty
+                    // operand stack; 0 is used as the value
+                    int value = sp > frame.base ? pop() : 0;
+                    sp = frame.base;
+                    frames.remove(frames.size() - 1);
+                    if (frames.isEmpty()) {
+                        return value;
+                    }
+                    frame = frames.get(frames.size() - 1);
+                    push(value);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown instruction: "
+                            + String.join(" ", instruction));
+            }
+        }
+    }
+
+    /**
+     * Runs a program from its main function
+     * @param entry name of the main function
+     */
+    public void run(String entry) {
+        call(entry);
+    }
+
+    /**
+     * Creates the frame of a call. The arguments are taken from the stack.
+     * @param name name of the function
+     * @param numArgs number of arguments in the stack
+     * @return new frame
+     */
+    private Frame enter(String name, int numArgs) {
+        VMFunction f = functions.get(name);
+        if (f == null) {
+            throw new IllegalStateException("Unknown function: " + name);
+        }
+        steps++;
+        if (profile != null) {
+            profile.enter(name);
+        }
+        int[] args = new int[numArgs];
+        for (int i = numArgs - 1; i >= 0; i--) {
+            args[i] = pop();
+        }
+        return new Frame(f, args, sp);
+    }
+
+    /**
+     * Executes the supported OS functions
+     * @param name name of the function
+     * @param numArgs number of arguments in the stack
+     */
+    private void callOS(String name, int numArgs) {
+        int[] args = new int[numArgs];
+        for (int i = numArgs - 1; i >= 0; i--) {
+            args[i] = pop();
+        }
+        switch (name) {
+            case "Output.printInt":
+                output.add(args[0]);
+                break;
+            case "Output.println":
+                break;
+            default:
+                throw new IllegalStateException("Unknown function: " + name);
+        }
+        push(0);
+    }
+
+    private int read(Frame frame, String segment, int offset) {
+        switch (segment) {
+            case "constant":
+                return offset;
+            case "local":
+                return frame.locals[index(frame.locals, segment, offset)];
+            case "argument":
+                return frame.args[index(frame.args, segment, offset)];
+            case "static":
+                return statics[index(statics, segment, offset)];
+            case "temp":
+                return temp[index(temp, segment, offset)];
+            default:
+                throw new IllegalStateException("Unknown segment: " + segment);
+        }
+    }
+
+    private void write(Frame frame, String segment, int offset, int value) {
+        switch (segment) {
+            case "local":
+                frame.locals[index(frame.locals, segment, offset)] = value;
+                break;
+            case "argument":
+                frame.args[index(frame.args, segment, offset)] = value;
+                break;
+            case "static":
+                statics[index(statics, segment, offset)] = value;
+                break;
+            case "temp":
+                temp[index(temp, segment, offset)] = value;
+                break;
+            default:
+                throw new IllegalStateException("Cannot pop to: " + segment);
+        }
+    }
+
+    /**
+     * Checks the offset of a segment, a call with fewer arguments than the
+     * function uses reads outside of its arguments
+     * @return offset
+     */
+    private int index(int[] values, String segment, int offset) {
+        if (offset < 0 || offset >= values.length) {
+            throw new IllegalStateException("Offset out of range: "
+                    + segment + " " + offset);
+        }
+        return offset;
+    }
+
+    private int label(Frame frame, String label) {
+        Integer position = labels.get(frame.function.name).get(label);
+        if (position == null) {
+            throw new IllegalStateException("Unknown label: " + label);
+        }
+        return position;
+    }
+
+    private void push(int value) {
+        if (sp == stack.length) {
+            int[] bigger = new int[stack.length * 2];
+            System.arraycopy(stack, 0, bigger, 0, sp);
+            stack = bigger;
+        }
+        // values are 16 bits, as in the Hack platform
+        stack[sp++] = (short) value;
+    }
+
+    private int pop() {
+        if (sp == 0) {
+            throw new IllegalStateException("Empty stack");
+        }
+        return stack[--sp];
+    }
+
+    /**
+     * Main program to test
+     * @param args
+     */
+    public static void main(String [] args) {
+        String code = "function Main.main 0\n"
+                + "\tpush constant 6\n"
+                + "\tpush constant 7\n"
+                + "\tcall Main.mult 2\n"
+                + "\tcall Output.printInt 1\n"
+                + "\tpop temp 0\n"
+                + "\treturn\n"
+                + CodeGenerator.MULT_CODE;
+        VMInterpreter vm = new VMInterpreter(code);
+        vm.run("Main.main");
+        System.out.println(vm.output + " in " + vm.steps + " steps");
+    }
+}
+
+/**
+ * Frame of a function call in the interpreter
+ */
+class Frame {
+
+    VMFunction function;
+    int pc;
+    int[] args;
+    int[] locals;
+    // position of the stack when the function was called
+    int base;
+
+    public Frame(VMFunction function, int[] args, int base) {
+        this.function = function;
+        this.args = args;
+        this.locals = new int[function.numLocals];
+        this.base = base;
+    }
+}